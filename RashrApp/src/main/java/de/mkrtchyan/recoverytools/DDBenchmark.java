@@ -0,0 +1,146 @@
+package de.mkrtchyan.recoverytools;
+
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.support.v7.app.AlertDialog;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.mkrtchyan.utils.Common;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class DDBenchmark extends AsyncTask<Void, Void, LinkedHashMap<Integer, Double>> {
+
+    public static final int[] BLOCK_SIZES = {4 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024,
+            4 * 1024 * 1024};
+    /** Size of the test file, small enough to finish every run within the shell timeout */
+    private static final int TEST_SIZE = 8 * 1024 * 1024;
+
+    private final RashrActivity mActivity;
+    private final Shell mShell;
+    private final File mBusybox, mInput, mOutput;
+    private ProgressDialog pDialog;
+    private Exception mException = null;
+
+    /**
+     * Measures the throughput of busybox dd (same command as used by FlashUtil) for several
+     * block sizes by copying a local test file, the fastest one can be used for flashing
+     */
+    public DDBenchmark(RashrActivity activity) {
+        mActivity = activity;
+        mShell = activity.getShell(FlashUtil.class);
+        mBusybox = new File(activity.getFilesDir(), "busybox");
+        mInput = new File(activity.getFilesDir(), "dd_benchmark_in.img");
+        mOutput = new File(activity.getFilesDir(), "dd_benchmark_out.img");
+    }
+
+    @Override
+    protected void onPreExecute() {
+        pDialog = new ProgressDialog(mActivity);
+        pDialog.setTitle(R.string.dd_benchmark);
+        pDialog.setMessage(mActivity.getString(R.string.dd_benchmark_running));
+        pDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        pDialog.setCancelable(false);
+        pDialog.show();
+    }
+
+    @Override
+    protected LinkedHashMap<Integer, Double> doInBackground(Void... params) {
+        LinkedHashMap<Integer, Double> results = new LinkedHashMap<>();
+        try {
+            mShell.execCommand(mBusybox.getAbsolutePath() + " dd if=/dev/urandom of=\""
+                    + mInput.getAbsolutePath() + "\" bs=" + (1024 * 1024)
+                    + " count=" + (TEST_SIZE / (1024 * 1024)));
+            for (int blockSize : BLOCK_SIZES) {
+                mShell.execCommand("rm -f \"" + mOutput.getAbsolutePath() + "\"");
+                long start = System.nanoTime();
+                mShell.execCommand(FlashUtil.getDDCommand(mBusybox, mInput, mOutput, blockSize, true));
+                long time = System.nanoTime() - start;
+                /** MB/s */
+                results.put(blockSize, (TEST_SIZE / (1024.0 * 1024.0)) / (time / 1000000000.0));
+            }
+        } catch (FailedExecuteCommand e) {
+            mException = e;
+        } finally {
+            try {
+                mShell.execCommand("rm -f \"" + mInput.getAbsolutePath() + "\" \""
+                        + mOutput.getAbsolutePath() + "\"");
+            } catch (FailedExecuteCommand e) {
+                mActivity.addError(Constants.FLASH_UTIL_TAG, e, false);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    protected void onPostExecute(LinkedHashMap<Integer, Double> results) {
+        pDialog.dismiss();
+        if (mException != null) {
+            mActivity.addError(Constants.FLASH_UTIL_TAG, mException, true);
+            return;
+        }
+        final int best = getFastest(results);
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<Integer, Double> result : results.entrySet()) {
+            message.append(String.format(Locale.US, "bs=%d KB: %.1f MB/s\n",
+                    result.getKey() / 1024, result.getValue()));
+        }
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.dd_benchmark)
+                .setMessage(message.toString())
+                .setPositiveButton(String.format(mActivity.getString(R.string.use_block_size),
+                        best / 1024 + " KB"), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Common.setIntegerPref(mActivity, FlashUtil.PREF_NAME,
+                                FlashUtil.PREF_KEY_DD_BLOCK_SIZE, best);
+                    }
+                })
+                .setNegativeButton(R.string.use_default_block_size, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Common.setIntegerPref(mActivity, FlashUtil.PREF_NAME,
+                                FlashUtil.PREF_KEY_DD_BLOCK_SIZE, 0);
+                    }
+                })
+                .show();
+    }
+
+    public static int getFastest(Map<Integer, Double> results) {
+        int best = FlashUtil.DD_BLOCK_SIZE_MMC;
+        double bestThroughput = 0;
+        for (Map.Entry<Integer, Double> result : results.entrySet()) {
+            if (result.getValue() > bestThroughput) {
+                bestThroughput = result.getValue();
+                best = result.getKey();
+            }
+        }
+        return best;
+    }
+}
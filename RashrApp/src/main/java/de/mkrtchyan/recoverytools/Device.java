@@ -2,10 +2,12 @@ package de.mkrtchyan.recoverytools;
 
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.support.v7.app.AlertDialog;
 
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.Toolbox;
 import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
 
 import java.io.BufferedReader;
@@ -15,13 +17,19 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import de.mkrtchyan.utils.ChecksumCatalog;
 import de.mkrtchyan.utils.Downloader;
+import de.mkrtchyan.utils.SHA1;
 import de.mkrtchyan.utils.Unzipper;
 
 /**
@@ -62,6 +70,17 @@ public class Device {
     public static final int PARTITION_TYPE_MTD = 2;
     public static final int PARTITION_TYPE_RECOVERY = 3;
     public static final int PARTITION_TYPE_SONY = 4;
+    /** Detected device profile, reused on next start if the fingerprint didn't change */
+    public static final String PREF_NAME = "device";
+    private static final String PREF_KEY_FINGERPRINT = "fingerprint";
+    private static final String PREF_KEY_NAME = "name";
+    private static final String PREF_KEY_RECOVERY_PATH = "recovery_path";
+    private static final String PREF_KEY_KERNEL_PATH = "kernel_path";
+    private static final String PREF_KEY_RECOVERY_TYPE = "recovery_type";
+    private static final String PREF_KEY_KERNEL_TYPE = "kernel_type";
+    private static final String PREF_KEY_RECOVERY_EXT = "recovery_ext";
+    private static final String PREF_KEY_KERNEL_EXT = "kernel_ext";
+    private static final String PREF_KEY_RECOVERY_VERSION = "recovery_version";
     /** Collection of known Recovery Partitions on some devices */
     private final File[] RecoveryList = {
             new File("/dev/block/platform/omap/omap_hsmmc.0/by-name/recovery"),
@@ -122,16 +141,189 @@ public class Device {
     private RashrActivity mActivity;
     private Context mContext;
     private Shell mShell;
+    private boolean mProfileLoaded = false;
+    /** Result of getFingerprint(), hashed only once per detection */
+    private String mFingerprint = null;
+    private boolean mFingerprintChecked = false;
+    /** Set if the user picked a unified build, a redetected profile must not undo it */
+    private volatile boolean mNameChosen = false;
 
     public Device(RashrActivity activity) {
         mActivity = activity;
         mContext = activity;
         mShell = activity.getShell();
+        /** last_log belongs to the last recovery boot, a stored profile doesn't make it current */
+        copyLastLog();
+        mProfileLoaded = loadProfile();
+        if (!mProfileLoaded) {
+            detectDevice();
+        }
+        loadRecoveryList();
+        loadKernelList();
+    }
+
+    /**
+     * Creates a device with freshly detected information, used to validate the stored profile
+     */
+    private Device(RashrActivity activity, boolean detect) {
+        mActivity = activity;
+        mContext = activity;
+        mShell = activity.getShell();
+        if (detect) {
+            detectDevice();
+        }
+    }
+
+    private void detectDevice() {
         setPredefinedOptions();
+        saveProfile();
+    }
+
+    private void copyLastLog() {
+        try {
+            File LogCopy = new File(mContext.getFilesDir(), Constants.LastLog.getName() + ".txt");
+            Toolbox toolbox = mActivity.getToolbox();
+            toolbox.setFilePermissions(Constants.LastLog, "666");
+            toolbox.copyFile(Constants.LastLog, LogCopy, false, false);
+            RashrActivity.LastLogExists = true;
+        } catch (Exception e) {
+            RashrActivity.LastLogExists = false;
+            mActivity.addError(Constants.DEVICE_TAG, e, false);
+        }
+    }
+
+    /**
+     * Profile is only valid for the same firmware and the same recovery/kernel collection
+     */
+    private String getFingerprint() {
+        if (!mFingerprintChecked) {
+            mFingerprint = generateFingerprint();
+            mFingerprintChecked = true;
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * @return null if the collections haven't been pushed yet or couldn't be hashed
+     */
+    private String generateFingerprint() {
+        File recoverySums = new File(mContext.getFilesDir(), "recovery_sums");
+        File kernelSums = new File(mContext.getFilesDir(), "kernel_sums");
+        if (!recoverySums.exists() || !kernelSums.exists()) {
+            /** No profile is stored until the collections are there, that's not an error */
+            return null;
+        }
+        try {
+            Map<File, String> checksums = SHA1.generateChecksums("SHA1", recoverySums, kernelSums);
+            return Build.FINGERPRINT
+                    + "/" + checksums.get(recoverySums)
+                    + "/" + checksums.get(kernelSums);
+        } catch (IOException e) {
+            mActivity.addError(Constants.DEVICE_TAG, e, false);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            mActivity.addError(Constants.DEVICE_TAG, e, false);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the device information found by a previous start
+     *
+     * @return false if there is no profile for this firmware
+     */
+    private boolean loadProfile() {
+        SharedPreferences prefs = mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        String fingerprint = getFingerprint();
+        if (fingerprint == null || !fingerprint.equals(prefs.getString(PREF_KEY_FINGERPRINT, null))) {
+            return false;
+        }
+        mName = prefs.getString(PREF_KEY_NAME, mName);
+        mRecoveryPath = prefs.getString(PREF_KEY_RECOVERY_PATH, mRecoveryPath);
+        mKernelPath = prefs.getString(PREF_KEY_KERNEL_PATH, mKernelPath);
+        mRECOVERY_TYPE = prefs.getInt(PREF_KEY_RECOVERY_TYPE, mRECOVERY_TYPE);
+        mKERNEL_TYPE = prefs.getInt(PREF_KEY_KERNEL_TYPE, mKERNEL_TYPE);
+        mRECOVERY_EXT = prefs.getString(PREF_KEY_RECOVERY_EXT, mRECOVERY_EXT);
+        mKERNEL_EXT = prefs.getString(PREF_KEY_KERNEL_EXT, mKERNEL_EXT);
+        mRecoveryVersion = prefs.getString(PREF_KEY_RECOVERY_VERSION, mRecoveryVersion);
+        return true;
+    }
+
+    private void saveProfile() {
+        String fingerprint = getFingerprint();
+        if (fingerprint == null) return;
+        mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit()
+                .putString(PREF_KEY_FINGERPRINT, fingerprint)
+                .putString(PREF_KEY_NAME, mName)
+                .putString(PREF_KEY_RECOVERY_PATH, mRecoveryPath)
+                .putString(PREF_KEY_KERNEL_PATH, mKernelPath)
+                .putInt(PREF_KEY_RECOVERY_TYPE, mRECOVERY_TYPE)
+                .putInt(PREF_KEY_KERNEL_TYPE, mKERNEL_TYPE)
+                .putString(PREF_KEY_RECOVERY_EXT, mRECOVERY_EXT)
+                .putString(PREF_KEY_KERNEL_EXT, mKERNEL_EXT)
+                .putString(PREF_KEY_RECOVERY_VERSION, mRecoveryVersion)
+                .commit();
+    }
+
+    private String getProfile() {
+        return mName + "\n" + mRecoveryPath + "\n" + mKernelPath + "\n" + mRECOVERY_TYPE + "\n"
+                + mKERNEL_TYPE + "\n" + mRECOVERY_EXT + "\n" + mKERNEL_EXT + "\n" + mRecoveryVersion;
+    }
+
+    private void applyProfile(Device device) {
+        if (!mNameChosen) {
+            mName = device.mName;
+        }
+        mRecoveryPath = device.mRecoveryPath;
+        mKernelPath = device.mKernelPath;
+        mRECOVERY_TYPE = device.mRECOVERY_TYPE;
+        mKERNEL_TYPE = device.mKERNEL_TYPE;
+        mRECOVERY_EXT = device.mRECOVERY_EXT;
+        mKERNEL_EXT = device.mKERNEL_EXT;
+        mRecoveryVersion = device.mRecoveryVersion;
         loadRecoveryList();
         loadKernelList();
     }
 
+    /**
+     * If the device information was loaded from the stored profile, detect the device again in
+     * background and apply the result if something changed
+     */
+    public void revalidateProfile() {
+        if (mProfileLoaded) {
+            mProfileLoaded = false;
+            redetect(null);
+        }
+    }
+
+    /**
+     * Detects the device again in background (ignoring the stored profile)
+     *
+     * @param onFinished will be executed on UI-Thread after detection, can be null
+     */
+    public void redetect(final Runnable onFinished) {
+        final Device current = this;
+        Thread detectThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Device detected = new Device(mActivity, true);
+                mActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!detected.getProfile().equals(current.getProfile())) {
+                            applyProfile(detected);
+                        }
+                        if (onFinished != null) {
+                            onFinished.run();
+                        }
+                    }
+                });
+            }
+        });
+        detectThread.setPriority(Thread.MIN_PRIORITY);
+        detectThread.start();
+    }
+
     private void setPredefinedOptions() {
 
         String MODEL = Build.MODEL.toLowerCase();
@@ -360,101 +552,52 @@ public class Device {
     }
 
     public void loadRecoveryList() {
-
-        ArrayList<String> CWMList = new ArrayList<>(), TWRPList = new ArrayList<>(),
-                PHILZList = new ArrayList<>(), StockList = new ArrayList<>();
-
         try {
-            String Line;
-            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(
-                    new File(mContext.getFilesDir(), "recovery_sums"))));
-            while ((Line = br.readLine()) != null) {
-                String lowLine = Line.toLowerCase();
-                final int NameStartAt = Line.lastIndexOf("/") + 1;
-                if (lowLine.endsWith(mRECOVERY_EXT)) {
-                    if (lowLine.contains(mName.toLowerCase()) || lowLine.contains(Build.DEVICE.toLowerCase())) {
-                        if (lowLine.contains("stock")) {
-                            StockList.add(Line.substring(NameStartAt));
-                        } else if (lowLine.contains("clockwork") || lowLine.contains("cwm")) {
-                            CWMList.add(Line.substring(NameStartAt));
-                        } else if (lowLine.contains("twrp")) {
-                            TWRPList.add(Line.substring(NameStartAt));
-                        } else if (lowLine.contains("philz")) {
-                            PHILZList.add(Line.substring(NameStartAt));
-                        }
-                    }
-                }
-            }
-            br.close();
-
-            Collections.sort(StockList);
-            Collections.sort(CWMList);
-            Collections.sort(TWRPList);
-            Collections.sort(PHILZList);
+            Map<String, List<String>> images = getImages("recovery_sums", mRECOVERY_EXT);
 
             /**
              * First clear list before adding items (to avoid double entry on reload by update)
+             * Lists are already sorted with the newest version at first place
              */
             mStockRecoveries.clear();
             mCwmRecoveries.clear();
             mTwrpRecoveries.clear();
             mPhilzRecoveries.clear();
-
-            /** Sort newest version to first place */
-            for (Object i : StockList) {
-                mStockRecoveries.add(0, i.toString());
-            }
-            for (Object i : CWMList) {
-                mCwmRecoveries.add(0, i.toString());
-            }
-            for (Object i : TWRPList) {
-                mTwrpRecoveries.add(0, i.toString());
-            }
-            for (Object i : PHILZList) {
-                mPhilzRecoveries.add(0, i.toString());
-            }
-
+            mStockRecoveries.addAll(images.get(ImageIndex.FLAVOUR_STOCK));
+            mCwmRecoveries.addAll(images.get(ImageIndex.FLAVOUR_CWM));
+            mTwrpRecoveries.addAll(images.get(ImageIndex.FLAVOUR_TWRP));
+            mPhilzRecoveries.addAll(images.get(ImageIndex.FLAVOUR_PHILZ));
         } catch (Exception e) {
             mActivity.addError(Constants.DEVICE_TAG, e, false);
         }
     }
 
     public void loadKernelList() {
-        ArrayList<String> StockKernel = new ArrayList<>();
-
         try {
-            String Line;
-            BufferedReader br = new BufferedReader(new InputStreamReader(
-                    new FileInputStream(new File(mContext.getFilesDir(), "kernel_sums"))));
-            while ((Line = br.readLine()) != null) {
-                String lowLine = Line.toLowerCase();
-                final int NameStartAt = Line.lastIndexOf("/") + 1;
-                if ((lowLine.contains(mName) || lowLine.contains(Build.DEVICE.toLowerCase()))
-                        && lowLine.endsWith(mKERNEL_EXT)) {
-                    if (lowLine.contains("stock")) {
-                        StockKernel.add(Line.substring(NameStartAt));
-                    }
-                }
-            }
-            br.close();
-
-            Collections.sort(StockKernel);
+            Map<String, List<String>> images = getImages("kernel_sums", mKERNEL_EXT);
 
             /**
              * First clear list before adding items (to avoid double entry on reload by update)
              */
             mStockKernel.clear();
-
-            /** Sort newest version to first place */
-            for (String i : StockKernel) {
-                mStockKernel.add(0, i);
-            }
-
+            mStockKernel.addAll(images.get(ImageIndex.FLAVOUR_STOCK));
         } catch (Exception e) {
             mActivity.addError(Constants.DEVICE_TAG, e, false);
         }
     }
 
+    /**
+     * @param sumsFile name of the checksum file in the App's files directory
+     * @param ext      extension of the images
+     * @return images of the device by flavour, the sums file is only parsed again if it changed
+     */
+    private Map<String, List<String>> getImages(String sumsFile, String ext) throws IOException {
+        File sums = new File(mContext.getFilesDir(), sumsFile);
+        ChecksumCatalog catalog = ChecksumCatalog.get(sums,
+                new File(mContext.getCacheDir(), sumsFile + ".idx"));
+        return ImageIndex.get(sums, catalog).getImages(ext, mName, Build.DEVICE);
+    }
+
     public boolean downloadUtils(final Context mContext) {
 
         final File archive = new File(Constants.PathToUtils, mName + EXT_ZIP);
@@ -496,38 +639,33 @@ public class Device {
     }
 
     private void readDeviceInfos() {
+        /**
+         * Partition doesn't exist LOLLIPOP Workaround File.exists() returns always
+         * false if file is in hidden FS. Lollipop marks /dev/.... as hidden
+         * Check all known partitions over RootShell in one go
+         */
+        ArrayList<String> candidates = new ArrayList<>();
         for (File i : KernelList) {
-            if (mKernelPath.equals("")) {
-                try {
-                    mShell.execCommand("ls " + i.getAbsolutePath());
-                    mKernelPath = i.getAbsolutePath();
-                    break;
-                } catch (FailedExecuteCommand ignore) {
-                    /**
-                     * Partition doesn't exist LOLLIPOP Workaround File.exists() returns always
-                     * false if file is in hidden FS. Lollipop marks /dev/.... as hidden
-                     * Check over RootShell (if throws exception partition not found check next
-                     */
-                }
+            candidates.add(i.getAbsolutePath());
+        }
+        for (File i : RecoveryList) {
+            candidates.add(i.getAbsolutePath());
+        }
+        Set<String> existing = getExistingFiles(candidates);
+        for (File i : KernelList) {
+            if (mKernelPath.equals("") && existing.contains(i.getAbsolutePath())) {
+                mKernelPath = i.getAbsolutePath();
+                break;
             }
         }
         for (File i : RecoveryList) {
-            if (mRecoveryPath.equals("")) {
-                try {
-                    mShell.execCommand("ls " + i.getAbsolutePath());
-                    mRecoveryPath = i.getAbsolutePath();
-                    if (mRecoveryPath.endsWith(EXT_TAR)) {
-                        mRECOVERY_EXT = EXT_TAR;
-                        mRECOVERY_TYPE = PARTITION_TYPE_SONY;
-                    }
-                    break;
-                } catch (FailedExecuteCommand ignore) {
-                    /**
-                     * Partition doesn't exist LOLLIPOP Workaround File.exists() returns always
-                     * false if file is in hidden FS. Lollipop marks /dev/.... as hidden
-                     * Check over RootShell (if throws exception partition not found check next
-                     */
+            if (mRecoveryPath.equals("") && existing.contains(i.getAbsolutePath())) {
+                mRecoveryPath = i.getAbsolutePath();
+                if (mRecoveryPath.endsWith(EXT_TAR)) {
+                    mRECOVERY_EXT = EXT_TAR;
+                    mRECOVERY_TYPE = PARTITION_TYPE_SONY;
                 }
+                break;
             }
         }
 
@@ -811,6 +949,7 @@ public class Device {
     }
 
     public void setName(String Name) {
+        mNameChosen = true;
         this.mName = Name;
     }
 
@@ -835,6 +974,9 @@ public class Device {
             String line;
             File LogCopy = new File(mContext.getFilesDir(), Constants.LastLog.getName() + ".txt");
             mShell.execCommand("chmod 644 " + LogCopy.getAbsolutePath());
+            /** Partitions named in last_log, checked all together after reading the log */
+            ArrayList<String> KernelCandidates = new ArrayList<>();
+            ArrayList<String> RecoveryCandidates = new ArrayList<>();
             BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(LogCopy)));
             while ((line = br.readLine()) != null) {
                 line = line.replace("\"", "");
@@ -863,20 +1005,8 @@ public class Device {
                         } else if (line.contains("/dev/")) {
                             for (String split : line.split(" ")) {
                                 if (split.startsWith("/dev")) {
-                                    try {
-                                        mShell.execCommand("ls " + split);
-                                        mKernelPath = split;
-                                        break;
-                                    } catch (FailedExecuteCommand e) {
-                                        e.printStackTrace();
-                                        /**
-                                         * Partition doesn't exist LOLLIPOP Workaround
-                                         * File.exists() returns always false if file is in hidden FS
-                                         * Lollipop marks /dev/.... as hidden
-                                         */
-                                    }
+                                    KernelCandidates.add(split);
                                 }
-
                             }
                         }
                     }
@@ -889,17 +1019,7 @@ public class Device {
                         } else if (line.contains("/dev/")) {
                             for (String split : line.split(" ")) {
                                 if (split.startsWith("/dev") || split.startsWith("/system")) {
-                                    try {
-                                        mShell.execCommand("ls " + split);
-                                        mRecoveryPath = split;
-                                        break;
-                                    } catch (FailedExecuteCommand ignore) {
-                                        /**
-                                         * Partition doesn't exist LOLLIPOP Workaround
-                                         * File.exists() returns always false if file is in hidden FS
-                                         * Lollipop marks /dev/.... as hidden
-                                         */
-                                    }
+                                    RecoveryCandidates.add(split);
                                 }
                             }
                         }
@@ -907,11 +1027,44 @@ public class Device {
                 }
             }
             br.close();
+
+            if (KernelCandidates.size() > 0 || RecoveryCandidates.size() > 0) {
+                ArrayList<String> candidates = new ArrayList<>(KernelCandidates);
+                candidates.addAll(RecoveryCandidates);
+                Set<String> existing = getExistingFiles(candidates);
+                /** First existing partition in order of the log */
+                for (String i : KernelCandidates) {
+                    if (existing.contains(i)) {
+                        mKernelPath = i;
+                        break;
+                    }
+                }
+                for (String i : RecoveryCandidates) {
+                    if (existing.contains(i)) {
+                        mRecoveryPath = i;
+                        break;
+                    }
+                }
+            }
         } catch (Exception e) {
             mActivity.addError(Constants.DEVICE_TAG, e, false);
         }
     }
 
+    /**
+     * Checks all files in one root shell command
+     *
+     * @return existing files, empty if the check failed
+     */
+    private Set<String> getExistingFiles(ArrayList<String> files) {
+        try {
+            return mActivity.getToolbox().getExistingFiles(files.toArray(new String[files.size()]));
+        } catch (FailedExecuteCommand e) {
+            mActivity.addError(Constants.DEVICE_TAG, e, false);
+            return new HashSet<>();
+        }
+    }
+
     private void readPartLayouts() {
         File PartLayout = new File(mContext.getFilesDir(), Build.DEVICE);
         if (!PartLayout.exists()) {
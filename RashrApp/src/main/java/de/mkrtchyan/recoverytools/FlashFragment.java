@@ -65,6 +65,9 @@ import de.mkrtchyan.utils.FileChooserDialog;
  */
 public class FlashFragment extends Fragment {
 
+    /** Parallel connections used to download recovery and kernel images */
+    private static final int DOWNLOAD_CONNECTIONS = 3;
+
     private SwipeRefreshLayout mSwipeUpdater = null;
     private File RecoveryCollectionFile, KernelCollectionFile;
 
@@ -265,6 +268,7 @@ public class FlashFragment extends Fragment {
                                 }
                             });
                             RecoveryDownloader.setRetry(true);
+                            RecoveryDownloader.setConnections(DOWNLOAD_CONNECTIONS);
                             RecoveryDownloader.setAskBeforeDownload(true);
                             RecoveryDownloader.setChecksumFile(RecoveryCollectionFile);
                             RecoveryDownloader.ask();
@@ -354,6 +358,7 @@ public class FlashFragment extends Fragment {
                                     }
                                 });
                                 KernelDownloader.setRetry(true);
+                                KernelDownloader.setConnections(DOWNLOAD_CONNECTIONS);
                                 KernelDownloader.setAskBeforeDownload(true);
                                 KernelDownloader.setChecksumFile(KernelCollectionFile);
                                 KernelDownloader.ask();
@@ -6,13 +6,23 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.widget.Toast;
 
+import org.sufficientlysecure.rootcommands.FileBatch;
+import org.sufficientlysecure.rootcommands.FileStat;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.Toolbox;
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.command.StreamCommand;
 import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Map;
 
 import de.mkrtchyan.utils.Common;
 
@@ -47,6 +57,22 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
     public static final String PREF_NAME = "FlashUtil";
     public static final String PREF_KEY_HIDE_REBOOT = "hide_reboot";
     public static final String PREF_KEY_FLASH_COUNTER = "last_counter";
+    /** Block size for dd on eMMC partitions in bytes (measured by DDBenchmark), 0 = default */
+    public static final String PREF_KEY_DD_BLOCK_SIZE = "dd_block_size";
+    /** Don't let dd fsync the output before returning */
+    public static final String PREF_KEY_DD_NO_SYNC = "dd_no_sync";
+    /** Always write the whole image instead of comparing it with the partition first */
+    public static final String PREF_KEY_ALWAYS_FULL_FLASH = "always_full_flash";
+    /** Don't read the partition back after writing an image */
+    public static final String PREF_KEY_SKIP_VERIFY = "skip_verify";
+    /** Large multiple of the eMMC page/erase sizes, dd default of 512 bytes is very slow */
+    public static final int DD_BLOCK_SIZE_MMC = 1024 * 1024;
+    /** One erase block of most NAND chips */
+    public static final int DD_BLOCK_SIZE_NAND = 128 * 1024;
+    /** Verified images are written in parts of this size, written parts are read back meanwhile */
+    private static final int VERIFY_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /** Reading or writing a whole partition, the default shell timeout is only 10 seconds */
+    private static final int FLASH_TIMEOUT = 10 * 60 * 1000;
     private final RashrActivity mActivity;
     private final Context mContext;
     private final Device mDevice;
@@ -56,6 +82,11 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
     private final File mCustomIMG, mBusybox, flash_image, dump_image;
     private ProgressDialog pDialog;
     private File tmpFile, CurrentPartition;
+    /** Result of getShellReadableImage(), the image is copied at most once per job */
+    private File mShellImage = null;
+    private int mBlockSize = DD_BLOCK_SIZE_MMC;
+    private boolean mSync = true;
+    private boolean mAlreadyFlashed = false;
     private boolean keepAppOpen = true;
     private Runnable RunAtEnd;
 
@@ -63,7 +94,8 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
 
     public FlashUtil(RashrActivity activity, File CustomIMG, int job) {
         mActivity = activity;
-        mShell = activity.getShell();
+        /** Long dd jobs on an own shell, the UI can still query the device meanwhile */
+        mShell = activity.getShell(FlashUtil.class);
         mContext = activity;
         mDevice = activity.getDevice();
         mJOB = job;
@@ -110,6 +142,8 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
                 PartitionType = mDevice.getKernelType();
                 CurrentPartition = new File(mDevice.getKernelPath());
             }
+            mBlockSize = getBlockSize(mContext, CurrentPartition);
+            mSync = !Common.getBooleanPref(mContext, PREF_NAME, PREF_KEY_DD_NO_SYNC);
 
             switch (PartitionType) {
                 case Device.PARTITION_TYPE_MTD:
@@ -127,6 +161,11 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
         } catch (Exception e) {
             mException = e;
             return false;
+        } finally {
+            /** Staged image or backup, partition sized, also removed if the job failed */
+            if (!tmpFile.equals(mCustomIMG)) {
+                tmpFile.delete();
+            }
         }
     }
 
@@ -136,7 +175,10 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
             if (mException != null) {
                 mActivity.addError(Constants.FLASH_UTIL_TAG, mException, true);
             }
-        } else if (tmpFile.delete()) {
+        } else {
+            if (mAlreadyFlashed) {
+                Toast.makeText(mContext, R.string.already_flashed, Toast.LENGTH_SHORT).show();
+            }
             if (RunAtEnd != null) RunAtEnd.run();
             if (isJobFlash() || isJobRestore()) {
                 if (!Common.getBooleanPref(mContext, PREF_NAME, PREF_KEY_HIDE_REBOOT)) {
@@ -160,24 +202,238 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
                 File patched_CustomIMG = new File(mContext.getFilesDir(), mCustomIMG.getName() + ".lok");
                 File loki_patch = new File(mContext.getFilesDir(), "loki_patch");
                 File loki_flash = new File(mContext.getFilesDir(), "loki_flash");
-                mShell.execCommand("dd if=" + aboot.getAbsolutePath() + " of=" + extracted_aboot.getAbsolutePath(), true);
+                mShell.execCommand("dd if=" + aboot.getAbsolutePath() + " of=" + extracted_aboot.getAbsolutePath(), FLASH_TIMEOUT);
                 mShell.execCommand(loki_patch.getAbsolutePath() + " recovery "
                         + mCustomIMG.getAbsolutePath() + " " + patched_CustomIMG.getAbsolutePath() + "  || exit 1", true);
                 Command = loki_flash.getAbsolutePath() + " recovery " + patched_CustomIMG.getAbsolutePath() + " || exit 1";
             } else {
-                Common.copyFile(mCustomIMG, tmpFile);
-                Command = mBusybox.getAbsolutePath() + " dd if=\"" + tmpFile.getAbsolutePath() + "\" " +
-                        "of=\"" + CurrentPartition.getAbsolutePath() + "\"";
+                if (!Common.getBooleanPref(mContext, PREF_NAME, PREF_KEY_ALWAYS_FULL_FLASH)
+                        && flashChangedChunks()) {
+                    return;
+                }
+                if (!Common.getBooleanPref(mContext, PREF_NAME, PREF_KEY_SKIP_VERIFY)) {
+                    flashVerified();
+                    return;
+                }
+                /** Image is written in one pass from its location into the partition */
+                Command = getDDCommand(getShellReadableImage(), CurrentPartition);
             }
         } else if (isJobBackup()) {
-
-            Command = mBusybox.getAbsolutePath() + " dd if=\"" + CurrentPartition.getAbsolutePath() + "\" " +
-                    "of=\"" + tmpFile.getAbsolutePath() + "\"";
+            if (isShellAccessible(mCustomIMG.getParentFile())) {
+                try {
+                    /** Partition is written in one pass directly to the backup location */
+                    mShell.execCommand(getDDCommand(CurrentPartition, mCustomIMG), FLASH_TIMEOUT);
+                    return;
+                } catch (FailedExecuteCommand e) {
+                    mActivity.addError(Constants.FLASH_UTIL_TAG, e, false);
+                    mCustomIMG.delete();
+                }
+            }
+            try {
+                /** Backup location is only visible to the App, partition is streamed to it */
+                streamToFile(mBusybox.getAbsolutePath() + " dd if=\"" + CurrentPartition.getAbsolutePath()
+                        + "\" bs=" + mBlockSize, mCustomIMG);
+                return;
+            } catch (IOException e) {
+                mActivity.addError(Constants.FLASH_UTIL_TAG, e, false);
+                mCustomIMG.delete();
+            }
+            Command = getDDCommand(CurrentPartition, tmpFile);
         }
-        mShell.execCommand(Command, true);
+        mShell.execCommand(Command, FLASH_TIMEOUT);
         if (isJobBackup()) placeImgBack();
     }
 
+    /**
+     * Writes the output of a root command into a file the App can write, without a copy in
+     * between
+     */
+    private void streamToFile(String command, File output) throws FailedExecuteCommand,
+            IOException {
+        File fifo = new File(mContext.getCacheDir(), "stream.fifo");
+        InputStream in = StreamCommand.open(mShell, mBusybox.getAbsolutePath() + " mkfifo", fifo,
+                command);
+        try {
+            FileOutputStream out = new FileOutputStream(output);
+            try {
+                Common.copyStream(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private String getDDCommand(File input, File output) {
+        return getDDCommand(mBusybox, input, output, mBlockSize, mSync);
+    }
+
+    /**
+     * Compares the image chunk by chunk with the partition and only rewrites the chunks which
+     * differ, nothing is written if the partition already contains the image. Rewritten chunks
+     * are read back afterwards.
+     *
+     * @return false if the whole image has to be written
+     * @throws FailedExecuteCommand if a rewritten chunk differs when it is read back
+     */
+    private boolean flashChangedChunks() throws FailedExecuteCommand, IOException {
+        int chunkSize = PartitionDigest.CHUNK_SIZE;
+        ArrayList<Integer> changed;
+        try {
+            int chunks = PartitionDigest.getChunkCount(mCustomIMG.length(), chunkSize);
+            /** The root shell reads the partition while the image is hashed here */
+            CommandFuture<SimpleCommand> partitionRead = PartitionDigest.submitHashPartition(
+                    mShell, mBusybox, CurrentPartition, mCustomIMG.length(), chunkSize, 0, chunks,
+                    false);
+            String[] imageHashes;
+            try {
+                imageHashes = PartitionDigest.hashFile(mCustomIMG, chunkSize);
+            } catch (IOException e) {
+                partitionRead.cancel(false);
+                throw e;
+            }
+            String[] partitionHashes = PartitionDigest.parseHashes(partitionRead,
+                    CurrentPartition, chunks);
+            changed = PartitionDigest.getChangedChunks(imageHashes, partitionHashes);
+            if (changed.size() == 0) {
+                mAlreadyFlashed = true;
+                return true;
+            }
+            if (changed.size() > imageHashes.length / 2) {
+                /** Writing everything at once is faster than many single chunks */
+                return false;
+            }
+            File image = getShellReadableImage();
+            StringBuilder script = new StringBuilder();
+            for (int chunk : changed) {
+                if (script.length() > 0) script.append(" && ");
+                script.append(mBusybox.getAbsolutePath()).append(" dd if=\"")
+                        .append(image.getAbsolutePath()).append("\" of=\"")
+                        .append(CurrentPartition.getAbsolutePath()).append("\" bs=").append(chunkSize)
+                        .append(" skip=").append(chunk).append(" seek=").append(chunk)
+                        .append(" count=1 conv=notrunc").append(mSync ? ",fsync" : "");
+            }
+            mShell.execCommand(script.toString(), FLASH_TIMEOUT);
+        } catch (Exception e) {
+            /** Comparing failed, fall back to writing the whole image */
+            mActivity.addError(Constants.FLASH_UTIL_TAG, e, false);
+            return false;
+        }
+        if (!Common.getBooleanPref(mContext, PREF_NAME, PREF_KEY_SKIP_VERIFY)) {
+            /** Unchanged chunks were just compared, only the rewritten ones are read back */
+            FlashVerifier verifier = new FlashVerifier(mActivity.getShell(FlashVerifier.class),
+                    mBusybox, mCustomIMG, CurrentPartition, chunkSize);
+            try {
+                for (int chunk : changed) {
+                    verifier.chunksWritten(chunk, chunk + 1);
+                }
+                verifier.verify();
+            } finally {
+                verifier.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the image in segments and reads every written segment back while the next ones
+     * are written. Fails with the offset of the first chunk which differs from the image.
+     */
+    private void flashVerified() throws FailedExecuteCommand, IOException {
+        int chunkSize = PartitionDigest.CHUNK_SIZE;
+        FlashVerifier verifier = new FlashVerifier(mActivity.getShell(FlashVerifier.class),
+                mBusybox, mCustomIMG, CurrentPartition, chunkSize);
+        try {
+            File image = getShellReadableImage();
+            /** skip and seek are counted in blocks, so a segment has to be a multiple of them */
+            int blockSize = VERIFY_SEGMENT_SIZE % mBlockSize == 0 ? mBlockSize : chunkSize;
+            int blocksPerSegment = VERIFY_SEGMENT_SIZE / blockSize;
+            int chunksPerSegment = VERIFY_SEGMENT_SIZE / chunkSize;
+            for (int chunk = 0; chunk < verifier.getChunkCount(); chunk += chunksPerSegment) {
+                long block = (long) chunk / chunksPerSegment * blocksPerSegment;
+                /** Always synced, the segment is read back while the next one is written */
+                mShell.execCommand(mBusybox.getAbsolutePath() + " dd if=\"" + image.getAbsolutePath()
+                        + "\" of=\"" + CurrentPartition.getAbsolutePath() + "\" bs=" + blockSize
+                        + " skip=" + block + " seek=" + block + " count=" + blocksPerSegment
+                        + " conv=notrunc,fsync", FLASH_TIMEOUT);
+                verifier.chunksWritten(chunk, chunk + chunksPerSegment);
+            }
+            verifier.verify();
+        } finally {
+            verifier.close();
+        }
+    }
+
+    /**
+     * The bundled busybox (1.21) has no oflag=direct, conv=fsync makes sure the data is on
+     * the flash when dd returns instead of staying in the page cache
+     */
+    public static String getDDCommand(File busybox, File input, File output, int blockSize,
+                                      boolean sync) {
+        return busybox.getAbsolutePath() + " dd if=\"" + input.getAbsolutePath() + "\" "
+                + "of=\"" + output.getAbsolutePath() + "\" bs=" + blockSize
+                + (sync ? " conv=fsync" : "");
+    }
+
+    /**
+     * @param partition block device that will be read or written
+     * @return best known size for NAND/MTD partitions, for eMMC partitions the size set in
+     * preferences (see DDBenchmark) or the default one
+     */
+    public static int getBlockSize(Context context, File partition) {
+        String name = partition.getName().toLowerCase();
+        if (partition.getAbsolutePath().contains("mtd") || name.startsWith("nand")) {
+            /** The benchmark runs on /data (eMMC), its result says nothing about raw NAND */
+            return DD_BLOCK_SIZE_NAND;
+        }
+        int blockSize = Common.getIntegerPref(context, PREF_NAME, PREF_KEY_DD_BLOCK_SIZE);
+        if (blockSize > 0) {
+            return blockSize;
+        }
+        return DD_BLOCK_SIZE_MMC;
+    }
+
+    /**
+     * @return block size used by dd for the current job
+     */
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return true if dd syncs the output before returning
+     */
+    public boolean isSync() {
+        return mSync;
+    }
+
+    /**
+     * Root shell runs maybe in another mount namespace (SuperSU) and can't see the external
+     * storage the App sees. Only in this case the image is copied into the App's files directory.
+     *
+     * @return image path readable by the root shell
+     */
+    private File getShellReadableImage() throws IOException {
+        if (mShellImage == null) {
+            if (isShellAccessible(mCustomIMG)) {
+                mShellImage = mCustomIMG;
+            } else {
+                Common.copyFile(mCustomIMG, tmpFile);
+                mShellImage = tmpFile;
+            }
+        }
+        return mShellImage;
+    }
+
+    private boolean isShellAccessible(File file) {
+        try {
+            return mToolbox.getExistingFiles(file.getAbsolutePath()).contains(file.getAbsolutePath());
+        } catch (FailedExecuteCommand e) {
+            return false;
+        }
+    }
+
     public void MTD() throws FailedExecuteCommand, IOException {
         String Command;
         if (isJobRecovery()) {
@@ -188,11 +444,11 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
             return;
         }
         if (isJobFlash() || isJobRestore()) {
-            Command = flash_image.getAbsolutePath() + Command + "\"" + tmpFile.getAbsolutePath() + "\"";
+            Command = flash_image.getAbsolutePath() + Command + "\"" + getShellReadableImage().getAbsolutePath() + "\"";
         } else if (isJobBackup()) {
             Command = dump_image.getAbsolutePath() + Command + "\"" + tmpFile.getAbsolutePath() + "\"";
         }
-        mShell.execCommand(Command, true);
+        mShell.execCommand(Command, FLASH_TIMEOUT);
         if (isJobBackup()) placeImgBack();
     }
 
@@ -206,47 +462,54 @@ public class FlashUtil extends AsyncTask<Void, Void, Boolean> {
                 File charger = new File(Constants.PathToUtils, "charger");
                 File chargermon = new File(Constants.PathToUtils, "chargermon");
                 File ric = new File(Constants.PathToUtils, "ric");
-                mToolbox.remount(CurrentPartition, "RW");
+                /** Install the helpers next to the recovery with one remount of /system */
+                File bin = CurrentPartition.getParentFile();
+                FileBatch install = new FileBatch();
+                ArrayList<File> helpers = new ArrayList<>();
+                helpers.add(charger);
+                helpers.add(chargermon);
+                if (mDevice.getName().equals("yuga")
+                        || mDevice.getName().equals("c6602")) {
+                    helpers.add(ric);
+                }
+                for (File helper : helpers) {
+                    File installed = new File(bin, helper.getName());
+                    install.copy(helper, installed).chmod(installed, "755");
+                }
                 try {
-                    mToolbox.copyFile(charger, CurrentPartition.getParentFile(), true, false);
-                    mToolbox.copyFile(chargermon, CurrentPartition.getParentFile(), true, false);
-                    if (mDevice.getName().equals("yuga")
-                            || mDevice.getName().equals("c6602")) {
-                        mToolbox.copyFile(ric, CurrentPartition.getParentFile(), true, false);
-                        mToolbox.setFilePermissions(ric, "755");
-                    }
-                } catch (Exception e) {
+                    mToolbox.withWritableMount(bin.getAbsolutePath(), install);
+                } catch (FailedExecuteCommand e) {
                     mActivity.addError(Constants.FLASH_UTIL_TAG, e, true);
                 }
-                mToolbox.setFilePermissions(charger, "755");
-                mToolbox.setFilePermissions(chargermon, "755");
                 mToolbox.setFilePermissions(mCustomIMG, "644");
-                mToolbox.remount(CurrentPartition, "RO");
                 Command = "cat " + mCustomIMG.getAbsolutePath() + " >> " + CurrentPartition.getAbsolutePath();
             } else if (isJobBackup()) {
                 Command = "cat " + CurrentPartition.getAbsolutePath() + " >> " + mCustomIMG.getAbsolutePath();
             }
         }
-        mShell.execCommand(Command, true);
+        mShell.execCommand(Command, FLASH_TIMEOUT);
         if (isJobBackup()) placeImgBack();
     }
 
     private void setBinaryPermissions() throws FailedExecuteCommand {
-        mToolbox.setFilePermissions(mBusybox, "755");
-		try {
-			mToolbox.setFilePermissions(flash_image, "755");
-		} catch (FailedExecuteCommand e) {
-			mToolbox.remount(flash_image, "rw");
-			mToolbox.setFilePermissions(flash_image, "755");
-			mToolbox.remount(flash_image, "ro");
-		}
-		try {
-			mToolbox.setFilePermissions(dump_image, "755");
-		} catch (FailedExecuteCommand e) {
-			mToolbox.remount(dump_image, "rw");
-			mToolbox.setFilePermissions(dump_image, "755");
-			mToolbox.remount(dump_image, "ro");
-		}
+        File[] binaries = {mBusybox, flash_image, dump_image};
+        String[] paths = new String[binaries.length];
+        for (int i = 0; i < binaries.length; i++) {
+            paths[i] = binaries[i].getAbsolutePath();
+        }
+        Map<String, FileStat> stats = mToolbox.getFileStats(paths);
+        for (File binary : binaries) {
+            FileStat stat = stats.get(binary.getAbsolutePath());
+            /** Already executable, no chmod (and no remount for a read only one) needed */
+            if (stat != null && stat.getPermissions().equals("755")) continue;
+            try {
+                mToolbox.setFilePermissions(binary, "755");
+            } catch (FailedExecuteCommand e) {
+                /** Binary is on a read only partition */
+                mToolbox.withWritableMount(binary.getAbsolutePath(),
+                        new FileBatch().chmod(binary, "755"));
+            }
+        }
     }
 
     public void showRebootDialog() {
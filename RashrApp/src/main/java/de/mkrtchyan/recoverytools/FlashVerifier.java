@@ -0,0 +1,145 @@
+package de.mkrtchyan.recoverytools;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Reads a partition back after it has been written and compares it chunk by chunk with the
+ * image. The image is hashed on all cores as soon as the verifier is created and written
+ * chunks are read back by another root shell of the pool, so both run while later chunks are written.
+ * Read backs are only submitted to the shell, no thread waits for them until the end.
+ */
+public class FlashVerifier {
+
+    private final File mBusybox, mPartition;
+    private final long mLength;
+    private final int mChunkSize;
+    private final Shell mShell;
+    private final ExecutorService mImageHasher = Executors.newSingleThreadExecutor();
+    private final Future<String[]> mImageHashes;
+    private final ArrayList<CommandFuture<SimpleCommand>> mReadBack = new ArrayList<>();
+    /** First and last (exclusive) chunk of each read back */
+    private final ArrayList<int[]> mReadBackChunks = new ArrayList<>();
+
+    /**
+     * @param shell     reads the partition back, should not be the shell which writes it. If it
+     *                  is, the read back is queued behind the writes, still verified but not
+     *                  overlapping.
+     * @param image     image readable by the App
+     * @param partition partition the image is written to
+     */
+    public FlashVerifier(Shell shell, File busybox, final File image, File partition,
+                         final int chunkSize) {
+        mShell = shell;
+        mBusybox = busybox;
+        mPartition = partition;
+        mLength = image.length();
+        mChunkSize = chunkSize;
+        mImageHashes = mImageHasher.submit(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return PartitionDigest.hashFile(image, chunkSize);
+            }
+        });
+    }
+
+    /**
+     * Queues the chunks from (inclusive) to (exclusive) for reading back, they have to be
+     * completely written (and synced) to the partition
+     */
+    public synchronized void chunksWritten(int from, int to) throws FailedExecuteCommand,
+            IOException {
+        int end = Math.min(to, getChunkCount());
+        if (from >= end) return;
+        mReadBackChunks.add(new int[]{from, end});
+        mReadBack.add(PartitionDigest.submitHashPartition(mShell, mBusybox, mPartition, mLength,
+                mChunkSize, from, end, true));
+    }
+
+    /**
+     * Waits until all queued chunks are read back
+     *
+     * @return offset in bytes of the first chunk which differs from the image, -1 if all
+     * chunks read back are equal
+     */
+    public synchronized long getFirstMismatch() throws FailedExecuteCommand, IOException {
+        try {
+            String[] imageHashes = mImageHashes.get();
+            long mismatch = -1;
+            for (int i = 0; i < mReadBack.size(); i++) {
+                int from = mReadBackChunks.get(i)[0];
+                String[] partitionHashes = PartitionDigest.parseHashes(mReadBack.get(i),
+                        mPartition, mReadBackChunks.get(i)[1] - from);
+                for (int j = 0; j < partitionHashes.length; j++) {
+                    if (!partitionHashes[j].equalsIgnoreCase(imageHashes[from + j])) {
+                        long offset = (long) (from + j) * mChunkSize;
+                        if (mismatch < 0 || offset < mismatch) {
+                            mismatch = offset;
+                        }
+                        break;
+                    }
+                }
+            }
+            return mismatch;
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Verification failed: " + e.getCause().toString())
+                    .initCause(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Verification interrupted");
+        }
+    }
+
+    /**
+     * Throws if a chunk read back differs from the image
+     */
+    public void verify() throws FailedExecuteCommand, IOException {
+        long mismatch = getFirstMismatch();
+        if (mismatch >= 0) {
+            throw new IOException(mPartition.getAbsolutePath()
+                    + " differs from the image at offset " + mismatch);
+        }
+    }
+
+    public int getChunkCount() {
+        return PartitionDigest.getChunkCount(mLength, mChunkSize);
+    }
+
+    public void close() {
+        mImageHasher.shutdownNow();
+        for (CommandFuture<SimpleCommand> readBack : mReadBack) {
+            readBack.cancel(false);
+        }
+    }
+}
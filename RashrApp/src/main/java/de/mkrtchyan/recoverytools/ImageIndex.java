@@ -0,0 +1,161 @@
+package de.mkrtchyan.recoverytools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.mkrtchyan.utils.ChecksumCatalog;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class ImageIndex {
+
+    public static final String FLAVOUR_STOCK = "stock";
+    public static final String FLAVOUR_CWM = "cwm";
+    public static final String FLAVOUR_TWRP = "twrp";
+    public static final String FLAVOUR_PHILZ = "philz";
+
+    /**
+     * One index per sums file. An updated sums file gives a new catalog, its index replaces the
+     * old one so the old catalog can be collected
+     */
+    private static final Map<String, ImageIndex> sIndexes = new HashMap<>();
+
+    /**
+     * Sorts versions numerically and newest first, so 2.8.10 comes before 2.8.9
+     */
+    private static final Comparator<String> NEWEST_FIRST = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return compareVersions(rhs, lhs);
+        }
+    };
+
+    private final ChecksumCatalog mCatalog;
+    private final Map<ChecksumCatalog.Entry, String> mFlavours = new HashMap<>();
+    private final Map<String, Map<String, List<String>>> mImages = new HashMap<>();
+
+    private ImageIndex(ChecksumCatalog catalog) {
+        mCatalog = catalog;
+        for (ChecksumCatalog.Entry entry : catalog.getEntries()) {
+            String flavour = getFlavour(entry.getLowPath());
+            if (flavour != null) {
+                mFlavours.put(entry, flavour);
+            }
+        }
+    }
+
+    /**
+     * @param sumsFile checksum file the catalog was parsed from
+     * @param catalog  current catalog of sumsFile, see ChecksumCatalog.get()
+     */
+    public static ImageIndex get(File sumsFile, ChecksumCatalog catalog) {
+        synchronized (sIndexes) {
+            ImageIndex index = sIndexes.get(sumsFile.getAbsolutePath());
+            if (index == null || index.mCatalog != catalog) {
+                index = new ImageIndex(catalog);
+                sIndexes.put(sumsFile.getAbsolutePath(), index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @param ext       extension of the images (.img, .zip, .tar)
+     * @param codenames device names, an image is listed if its path contains one of them
+     * @return image names per flavour, newest version first. Flavours without images are empty
+     */
+    public synchronized Map<String, List<String>> getImages(String ext, String... codenames) {
+        StringBuilder key = new StringBuilder(ext);
+        for (String codename : codenames) {
+            key.append('|').append(codename.toLowerCase());
+        }
+        Map<String, List<String>> images = mImages.get(key.toString());
+        if (images == null) {
+            Set<ChecksumCatalog.Entry> entries = new LinkedHashSet<>();
+            for (String codename : codenames) {
+                entries.addAll(mCatalog.getEntries(codename));
+            }
+            images = new HashMap<>();
+            for (String flavour : new String[]{FLAVOUR_STOCK, FLAVOUR_CWM, FLAVOUR_TWRP, FLAVOUR_PHILZ}) {
+                images.put(flavour, new ArrayList<String>());
+            }
+            for (ChecksumCatalog.Entry entry : entries) {
+                String flavour = mFlavours.get(entry);
+                if (flavour != null && entry.getLowPath().endsWith(ext)) {
+                    images.get(flavour).add(entry.getName());
+                }
+            }
+            for (Map.Entry<String, List<String>> flavour : images.entrySet()) {
+                Collections.sort(flavour.getValue(), NEWEST_FIRST);
+                flavour.setValue(Collections.unmodifiableList(flavour.getValue()));
+            }
+            mImages.put(key.toString(), images);
+        }
+        return images;
+    }
+
+    private static String getFlavour(String lowPath) {
+        if (lowPath.contains("stock")) {
+            return FLAVOUR_STOCK;
+        } else if (lowPath.contains("clockwork") || lowPath.contains("cwm")) {
+            return FLAVOUR_CWM;
+        } else if (lowPath.contains("twrp")) {
+            return FLAVOUR_TWRP;
+        } else if (lowPath.contains("philz")) {
+            return FLAVOUR_PHILZ;
+        }
+        return null;
+    }
+
+    /**
+     * Compares names part by part, digit runs are compared as numbers
+     */
+    static int compareVersions(String lhs, String rhs) {
+        int i = 0, j = 0;
+        while (i < lhs.length() && j < rhs.length()) {
+            char a = lhs.charAt(i), b = rhs.charAt(j);
+            if (Character.isDigit(a) && Character.isDigit(b)) {
+                int startA = i, startB = j;
+                while (i < lhs.length() && Character.isDigit(lhs.charAt(i))) i++;
+                while (j < rhs.length() && Character.isDigit(rhs.charAt(j))) j++;
+                /** Strip leading zeros, then the longer number is the bigger one */
+                while (startA < i - 1 && lhs.charAt(startA) == '0') startA++;
+                while (startB < j - 1 && rhs.charAt(startB) == '0') startB++;
+                int lengthA = i - startA, lengthB = j - startB;
+                if (lengthA != lengthB) return lengthA - lengthB;
+                int result = lhs.substring(startA, i).compareTo(rhs.substring(startB, j));
+                if (result != 0) return result;
+            } else {
+                if (a != b) return a - b;
+                i++;
+                j++;
+            }
+        }
+        return (lhs.length() - i) - (rhs.length() - j);
+    }
+}
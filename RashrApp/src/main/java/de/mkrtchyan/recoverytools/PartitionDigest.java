@@ -0,0 +1,203 @@
+package de.mkrtchyan.recoverytools;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.mkrtchyan.utils.SHA1;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class PartitionDigest {
+
+    /** Images and partitions are compared in chunks of this size */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    /** Reading a whole partition takes longer than the default shell timeout */
+    private static final int HASH_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * SHA1 of each chunk of a file readable by the App. Chunks are hashed in parallel on all
+     * CPU cores.
+     *
+     * @return hex checksums, the last chunk may be shorter than chunkSize
+     */
+    public static String[] hashFile(final File file, final int chunkSize) throws IOException {
+        final int chunks = getChunkCount(file.length(), chunkSize);
+        int threads = Math.max(1, Math.min(chunks, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            final FileChannel channel = fis.getChannel();
+            ArrayList<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                final int chunk = i;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return hashChunk(channel, chunk, chunkSize, file.length());
+                    }
+                }));
+            }
+            String[] hashes = new String[chunks];
+            for (int i = 0; i < chunks; i++) {
+                try {
+                    hashes[i] = results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : (IOException) new IOException(e.getCause().toString())
+                            .initCause(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            return hashes;
+        } finally {
+            executor.shutdownNow();
+            fis.close();
+        }
+    }
+
+    private static String hashChunk(FileChannel channel, int chunk, int chunkSize, long length)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = (long) chunk * chunkSize;
+        long end = Math.min(position + chunkSize, length);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            sha1.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return SHA1.toHex(sha1.digest());
+    }
+
+    /**
+     * SHA1 of each chunk of the first length bytes of a partition, calculated by the root shell
+     * with a single command
+     *
+     * @return hex checksums, the last chunk may be shorter than chunkSize
+     */
+    public static String[] hashPartition(Shell shell, File busybox, File partition, long length,
+                                         int chunkSize) throws FailedExecuteCommand, IOException {
+        return hashPartition(shell, busybox, partition, length, chunkSize, 0,
+                getChunkCount(length, chunkSize), false);
+    }
+
+    /**
+     * SHA1 of the chunks from (inclusive) to (exclusive) of a partition
+     *
+     * @param uncached drop the buffered data of the partition first, so the data is really read
+     *                 from the flash (used to verify a write)
+     * @return hex checksums of the chunks, index 0 is chunk from
+     */
+    public static String[] hashPartition(Shell shell, File busybox, File partition, long length,
+                                         int chunkSize, int from, int to, boolean uncached)
+            throws FailedExecuteCommand, IOException {
+        return parseHashes(submitHashPartition(shell, busybox, partition, length, chunkSize,
+                from, to, uncached), partition, to - from);
+    }
+
+    /**
+     * Same as hashPartition() but doesn't wait for the shell, the App can do other work
+     * (like hashing the image) meanwhile. Use parseHashes() for the result.
+     */
+    public static CommandFuture<SimpleCommand> submitHashPartition(Shell shell, File busybox,
+                                                                   File partition, long length,
+                                                                   int chunkSize, int from, int to,
+                                                                   boolean uncached)
+            throws FailedExecuteCommand, IOException {
+        String bb = busybox.getAbsolutePath();
+        StringBuilder script = new StringBuilder();
+        if (uncached) {
+            script.append(bb).append(" blockdev --flushbufs \"").append(partition.getAbsolutePath())
+                    .append("\"");
+        }
+        for (int chunk = from; chunk < to; chunk++) {
+            long chunkLength = Math.min(chunkSize, length - (long) chunk * chunkSize);
+            if (script.length() > 0) script.append("; ");
+            script.append(bb).append(" dd if=\"").append(partition.getAbsolutePath())
+                    .append("\" bs=").append(chunkSize).append(" skip=").append(chunk)
+                    .append(" count=1 2>/dev/null | ").append(bb).append(" head -c ")
+                    .append(chunkLength).append(" | ").append(bb).append(" sha1sum");
+        }
+        SimpleCommand command = new SimpleCommand(script.toString());
+        command.setTimeout(HASH_TIMEOUT);
+        return shell.submit(command);
+    }
+
+    /**
+     * Waits for a command submitted by submitHashPartition()
+     *
+     * @param chunks number of chunks the command hashes
+     */
+    public static String[] parseHashes(CommandFuture<SimpleCommand> command, File partition,
+                                       int chunks) throws FailedExecuteCommand, IOException {
+        ArrayList<String> hashes = new ArrayList<>();
+        for (String line : command.getOutput().split("\n")) {
+            line = line.trim();
+            if (!line.equals("")) {
+                hashes.add(line.split("\\s+")[0]);
+            }
+        }
+        if (hashes.size() != chunks) {
+            throw new IOException("Got " + hashes.size() + " of " + chunks + " checksums for "
+                    + partition);
+        }
+        return hashes.toArray(new String[chunks]);
+    }
+
+    /**
+     * @return indexes of the chunks which differ
+     */
+    public static ArrayList<Integer> getChangedChunks(String[] image, String[] partition) {
+        ArrayList<Integer> changed = new ArrayList<>();
+        for (int chunk = 0; chunk < image.length; chunk++) {
+            if (chunk >= partition.length || !image[chunk].equalsIgnoreCase(partition[chunk])) {
+                changed.add(chunk);
+            }
+        }
+        return changed;
+    }
+
+    public static int getChunkCount(long length, int chunkSize) {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+}
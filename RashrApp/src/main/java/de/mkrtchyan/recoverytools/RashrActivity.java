@@ -9,11 +9,13 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
@@ -23,7 +25,9 @@ import com.google.ads.AdRequest;
 import com.google.ads.AdView;
 
 import org.sufficientlysecure.donations.DonationsFragment;
+import org.sufficientlysecure.rootcommands.CommandJournal;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
 import org.sufficientlysecure.rootcommands.Toolbox;
 
 import java.io.File;
@@ -32,6 +36,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import de.mkrtchyan.utils.Common;
 import de.mkrtchyan.utils.Downloader;
@@ -75,8 +81,15 @@ public class RashrActivity extends AppCompatActivity implements
      * Declaring needed objects
      */
     private final ArrayList<String> mERRORS = new ArrayList<>();
+    /** UI queries, flashing and verifying each get an own shell so they don't block each other */
+    private static final int SHELL_POOL_SIZE = 3;
+    /** Root shells are started at the beginning of onCreate and picked up by the StartThread */
+    private Future<ShellPool> mShellPoolStart;
+    private ShellPool mShellPool;
     private Shell mShell;
     private Toolbox mToolbox;
+    /** Shell mToolbox works on */
+    private Shell mToolboxShell;
     private Device mDevice;
     private Toolbar mToolbar;
 
@@ -86,8 +99,14 @@ public class RashrActivity extends AppCompatActivity implements
 
     private boolean mVersionChanged = false;
 
+    /** Startup timing in ms since onCreate, for reports */
+    private long mStartTime, mRootReadyTime = -1, mStartupTime = -1;
+
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartTime = SystemClock.elapsedRealtime();
+        /** su and its handshake run while the layout is inflated and the files are extracted */
+        mShellPoolStart = ShellPool.startRootShellsAsync(mContext, SHELL_POOL_SIZE);
         isDark = Common.getBooleanPref(mContext, Constants.PREF_NAME, Constants.PREF_KEY_DARK_UI);
         setTheme(!isDark ? R.style.Rashr : R.style.Rashr_Dark);
         setContentView(R.layout.loading_layout);
@@ -97,29 +116,6 @@ public class RashrActivity extends AppCompatActivity implements
         final Thread StartThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                mActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        tvLoading.setText(R.string.getting_root);
-                    }
-                });
-                /** Try to get root access */
-                try {
-                    startShell();
-                    mToolbox = new Toolbox(mShell);
-                } catch (IOException e) {
-                    mActivity.addError(Constants.RASHR_TAG, e, false);
-                    mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            findViewById(R.id.pbLoading).setVisibility(View.INVISIBLE);
-                            tvLoading.setTextColor(Color.RED);
-                            tvLoading.setText(R.string.no_root);
-                        }
-                    });
-                    return;
-                }
-
                 /** Creating needed folder and unpacking files */
                 mActivity.runOnUiThread(new Runnable() {
                     @Override
@@ -149,14 +145,29 @@ public class RashrActivity extends AppCompatActivity implements
                     });
                 }
 
+                mActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        tvLoading.setText(R.string.getting_root);
+                    }
+                });
+                /** Wait for the root shells started in onCreate */
                 try {
-                    File LogCopy = new File(mContext.getFilesDir(), Constants.LastLog.getName() + ".txt");
-                    mToolbox.setFilePermissions(Constants.LastLog, "666");
-                    mToolbox.copyFile(Constants.LastLog, LogCopy, false, false);
-                } catch (Exception e) {
-                    LastLogExists = false;
+                    startShell();
+                    mRootReadyTime = SystemClock.elapsedRealtime() - mStartTime;
+                } catch (IOException e) {
                     mActivity.addError(Constants.RASHR_TAG, e, false);
+                    mActivity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            findViewById(R.id.pbLoading).setVisibility(View.INVISIBLE);
+                            tvLoading.setTextColor(Color.RED);
+                            tvLoading.setText(R.string.no_root);
+                        }
+                    });
+                    return;
                 }
+
                 mActivity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -224,7 +235,7 @@ public class RashrActivity extends AppCompatActivity implements
                             Common.setBooleanPref(mContext, Constants.PREF_NAME,
                                     Constants.PREF_KEY_ADS, true);
                             /** Reset Shell Logs */
-                            Common.deleteLogs(mContext);
+                            CommandJournal.get(mContext).clear();
                             /** Show Play Store rater dialog */
                             mActivity.runOnUiThread(new Runnable() {
                                 @Override
@@ -262,6 +273,12 @@ public class RashrActivity extends AppCompatActivity implements
                                 }
                             }
                             onNavigationDrawerItemSelected(0);
+                            /** Device was maybe loaded from stored profile, check it in background */
+                            mDevice.revalidateProfile();
+                            mStartupTime = SystemClock.elapsedRealtime() - mStartTime;
+                            if (BuildConfig.DEBUG) {
+                                Log.i(Constants.RASHR_TAG, getStartupTimes());
+                            }
                         } catch (NullPointerException e) {
                             mActivity.addError(Constants.RASHR_TAG, e, false);
                             try {
@@ -280,6 +297,35 @@ public class RashrActivity extends AppCompatActivity implements
         StartThread.start();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        /** A re-created activity starts its own pool, the su processes of this one must end */
+        if (mShellPool != null) {
+            closeShellPool(mShellPool);
+        } else if (mShellPoolStart != null) {
+            final Future<ShellPool> start = mShellPoolStart;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        closeShellPool(start.get());
+                    } catch (Exception ignored) {
+                        /** Root access denied, no shells to close */
+                    }
+                }
+            }, "ShellPool Close").start();
+        }
+    }
+
+    private static void closeShellPool(ShellPool pool) {
+        try {
+            pool.close();
+        } catch (IOException e) {
+            Log.e(Constants.RASHR_TAG, "Unable to close shells", e);
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -335,7 +381,7 @@ public class RashrActivity extends AppCompatActivity implements
                 @Override
                 public void onClick(DialogInterface dialogInterface, int i) {
                     try {
-                        mToolbox.reboot(Toolbox.REBOOT_RECOVERY);
+                        getToolbox().reboot(Toolbox.REBOOT_RECOVERY);
                     } catch (Exception e) {
                         mActivity.addError(Constants.RASHR_TAG, e, false);
                     }
@@ -446,12 +492,51 @@ public class RashrActivity extends AppCompatActivity implements
     }
 
     /**
-     * Share instances with root access instance with all other Classes
+     * Share instances with root access instance with all other Classes. Asks the pool every
+     * time, so a shell which died is replaced.
      */
     public Shell getShell() {
-        return mShell;
+        return getShell(RashrActivity.class);
+    }
+
+    /**
+     * @param key commands requested with the same key run in order on the same shell, different
+     *            keys run in parallel (e.g. FlashUtil.class for long dd jobs)
+     * @return shell bound to key or the default shell if the pool can't provide one
+     */
+    public Shell getShell(Object key) {
+        if (mShellPool == null) return mShell;
+        try {
+            Shell shell = mShellPool.getShell(key);
+            if (key == RashrActivity.class) mShell = shell;
+            return shell;
+        } catch (IOException e) {
+            addError(Constants.RASHR_TAG, e, false);
+            return mShell;
+        }
+    }
+
+    /**
+     * @return time until root access and until the UI was ready, for reports
+     */
+    public String getStartupTimes() {
+        return "Startup took " + mStartupTime + " ms, root shell ready after " + mRootReadyTime
+                + " ms";
     }
+
+    public ShellPool getShellPool() {
+        return mShellPool;
+    }
+
+    /**
+     * @return toolbox working on the current default shell
+     */
     public Toolbox getToolbox() {
+        Shell shell = getShell();
+        if (shell != null && mToolboxShell != shell) {
+            mToolbox = new Toolbox(shell);
+            mToolboxShell = shell;
+        }
         return mToolbox;
     }
 
@@ -524,14 +609,30 @@ public class RashrActivity extends AppCompatActivity implements
 
     private void startShell() throws IOException{
         try {
-            mShell = Shell.startRootShell(mContext);
+            mShellPool = awaitShellPool();
         } catch (IOException e) {
             if (BuildConfig.DEBUG) {
                 /** ignore root access error on Debug Rashr, use normal shell*/
-                mShell = Shell.startShell();
+                mShellPool = ShellPool.startShells(SHELL_POOL_SIZE);
             } else {
                 throw e;
             }
         }
+        mShell = mShellPool.getShell(RashrActivity.class);
+    }
+
+    /**
+     * Waits for the root shells started in onCreate
+     */
+    private ShellPool awaitShellPool() throws IOException {
+        try {
+            return mShellPoolStart.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw (IOException) new IOException("Unable to start root shells")
+                    .initCause(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for root access");
+        }
     }
 }
\ No newline at end of file
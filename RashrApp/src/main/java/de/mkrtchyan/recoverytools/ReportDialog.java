@@ -11,11 +11,18 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import org.sufficientlysecure.rootcommands.CommandJournal;
+import org.sufficientlysecure.rootcommands.CommandStats;
+import org.sufficientlysecure.rootcommands.FileBatch;
+import org.sufficientlysecure.rootcommands.FileStat;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.Toolbox;
+import org.sufficientlysecure.rootcommands.command.StreamCommand;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 
 import de.mkrtchyan.utils.Common;
@@ -78,14 +85,37 @@ public class ReportDialog extends Dialog {
                                     if (TestResults.delete()) {
                                         FileOutputStream fos = activity.openFileOutput(
                                                 TestResults.getName(), Context.MODE_PRIVATE);
-                                        fos.write(("Rashr:\n\n" + shell
-                                                .execCommand("ls -lR " + Constants.PathToRashr.getAbsolutePath()) +
-                                                "\nCache Tree:\n" + shell
-                                                .execCommand("ls -lR /cache") + "\n" +
-                                                "\nMTD result:\n" + shell
-                                                .execCommand("cat /proc/mtd") + "\n" +
-                                                "\nDevice Tree:\n\n" + shell
-                                                .execCommand("ls -lR /dev")).getBytes());
+                                        String mkfifo = new File(activity.getFilesDir(), "busybox")
+                                                .getAbsolutePath() + " mkfifo";
+                                        File fifo = new File(activity.getCacheDir(), "report.fifo");
+                                        String[][] sections = {
+                                                {"Rashr:\n\n", "ls -lR " + Constants.PathToRashr.getAbsolutePath()},
+                                                {"\nCache Tree:\n", "ls -lR /cache"},
+                                                {"\n\nMTD result:\n", "cat /proc/mtd"},
+                                                {"\n\nDevice Tree:\n\n", "ls -lR /dev"}};
+                                        try {
+                                            /** Outputs go straight into the file, ls -lR /dev can be large */
+                                            for (String[] section : sections) {
+                                                fos.write(section[0].getBytes());
+                                                /**
+                                                 * Errors and the exit code belong to the section,
+                                                 * an unreadable folder must not end the report
+                                                 */
+                                                InputStream in = StreamCommand.open(shell, mkfifo,
+                                                        fifo, section[1] + " 2>&1 || echo \"Exit code $?\"");
+                                                try {
+                                                    try {
+                                                        Common.copyStream(in, fos);
+                                                    } finally {
+                                                        in.close();
+                                                    }
+                                                } catch (IOException e) {
+                                                    fos.write(("\n" + e.getMessage() + "\n").getBytes());
+                                                }
+                                            }
+                                        } finally {
+                                            fos.close();
+                                        }
                                     }
                                     files.add(TestResults);
                                 }
@@ -114,6 +144,7 @@ public class ReportDialog extends Dialog {
                                                 "\nModel: " + Build.MODEL +
                                                 "\nFingerprint: " + Build.FINGERPRINT +
                                                 "\nAndroid SDK Level: " + Build.VERSION.CODENAME + " (" + Build.VERSION.SDK_INT + ")";
+                                message += "\n" + activity.getStartupTimes();
 
                                 if (device.isRecoverySupported()) {
                                     message += "\n\nRecovery Path: " + device.getRecoveryPath() +
@@ -141,21 +172,45 @@ public class ReportDialog extends Dialog {
                                         "\n===========PREFS==========\n"
                                                 + activity.getAllPrefs() +
                                                 "\n=========PREFS END========\n";
+                                CommandJournal.get(activity).sync();
                                 files.add(new File(activity.getFilesDir(), Shell.Logs));
+                                try {
+                                    File stats = new File(activity.getFilesDir(),
+                                            "command_stats.txt");
+                                    FileOutputStream fos = new FileOutputStream(stats);
+                                    try {
+                                        fos.write(CommandStats.get().dump().getBytes());
+                                    } finally {
+                                        fos.close();
+                                    }
+                                    files.add(stats);
+                                } catch (IOException e) {
+                                    activity.addError(Constants.RASHR_TAG, e, false);
+                                }
                                 files.add(new File(activity.getFilesDir(), "last_log.txt"));
                                 ArrayList<Uri> uris = new ArrayList<>();
                                 File tmpFolder = new File(activity.getFilesDir(), "tmp");
                                 if (tmpFolder.mkdir()) tmpFolder.deleteOnExit();
-                                for (File i : files) {
-                                    try {
-                                        File tmp = new File(tmpFolder, i.getName());
-                                        toolbox.setFilePermissions(tmp, "777");
-                                        toolbox.copyFile(i, tmp, true, false);
-                                        toolbox.setFilePermissions(tmp, "777");
-                                        uris.add(Uri.fromFile(tmp));
-                                    } catch (Exception e) {
-                                        activity.addError(Constants.RASHR_TAG, e, false);
+                                /** Copy all existing logs with one stat and one batch */
+                                String[] paths = new String[files.size()];
+                                for (int i = 0; i < paths.length; i++) {
+                                    paths[i] = files.get(i).getAbsolutePath();
+                                }
+                                ArrayList<File> copies = new ArrayList<>();
+                                FileBatch copy = new FileBatch();
+                                try {
+                                    for (FileStat log : toolbox.getFileStats(paths).values()) {
+                                        File tmp = new File(tmpFolder,
+                                                new File(log.getPath()).getName());
+                                        copy.copy(new File(log.getPath()), tmp).chmod(tmp, "777");
+                                        copies.add(tmp);
                                     }
+                                    toolbox.withWritableMount(tmpFolder.getAbsolutePath(), copy);
+                                } catch (Exception e) {
+                                    activity.addError(Constants.RASHR_TAG, e, false);
+                                }
+                                for (File tmp : copies) {
+                                    if (tmp.exists()) uris.add(Uri.fromFile(tmp));
                                 }
                                 if (errors.size() > 0) {
                                     message += "ERRORS:\n";
@@ -189,11 +189,14 @@ public class ScriptManagerFragment extends Fragment {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
                             try {
+                                /** All lines are written to the shell at once */
+                                ArrayList<String> lines = new ArrayList<>();
                                 for (String split : command.toString().split(";")) {
                                     if (!split.equals("")) {
-                                        mShell.execCommand("echo " + split + " >> /cache/recovery/openrecoveryscript");
+                                        lines.add("echo " + split + " >> /cache/recovery/openrecoveryscript");
                                     }
                                 }
+                                mShell.execBatch(lines.toArray(new String[lines.size()]));
                                 new Toolbox(mShell).reboot(Toolbox.REBOOT_RECOVERY);
                             } catch (Exception e) {
                                 e.printStackTrace();
@@ -18,6 +18,7 @@ import android.webkit.WebViewClient;
 import android.widget.CompoundButton;
 import android.widget.Toast;
 
+import org.sufficientlysecure.rootcommands.CommandJournal;
 import org.sufficientlysecure.rootcommands.Shell;
 
 import de.mkrtchyan.utils.Common;
@@ -59,10 +60,15 @@ public class SettingsFragment extends Fragment {
         final SwitchCompat swLog = (SwitchCompat) root.findViewById(R.id.cbLog);
         final SwitchCompat swDarkUI = (SwitchCompat) root.findViewById(R.id.cbDarkUI);
         final SwitchCompat swCheckUpdates = (SwitchCompat) root.findViewById(R.id.cbCheckUpdates);
+        final SwitchCompat swDDSync = (SwitchCompat) root.findViewById(R.id.cbDDSync);
+        final SwitchCompat swVerifyFlash = (SwitchCompat) root.findViewById(R.id.cbVerifyFlash);
+        final SwitchCompat swFlashChanged = (SwitchCompat) root.findViewById(R.id.cbFlashChanged);
         final AppCompatButton bShowLogs = (AppCompatButton) root.findViewById(R.id.bShowLogs);
         final AppCompatButton bReport = (AppCompatButton) root.findViewById(R.id.bReport);
         final AppCompatButton bShowChangelog = (AppCompatButton) root.findViewById(R.id.bShowChangelog);
         final AppCompatButton bReset = (AppCompatButton) root.findViewById(R.id.bReset);
+        final AppCompatButton bRedetect = (AppCompatButton) root.findViewById(R.id.bRedetect);
+        final AppCompatButton bDDBenchmark = (AppCompatButton) root.findViewById(R.id.bDDBenchmark);
         final AppCompatButton bClearCache = (AppCompatButton) root.findViewById(R.id.bClearCache);
 
         swDarkUI.setChecked(Common.getBooleanPref(root.getContext(), Constants.PREF_NAME,
@@ -74,6 +80,12 @@ public class SettingsFragment extends Fragment {
                 Constants.PREF_KEY_CHECK_UPDATES));
         swShowAds.setChecked(Common.getBooleanPref(root.getContext(), Constants.PREF_NAME,
                 Constants.PREF_KEY_ADS));
+        swDDSync.setChecked(!Common.getBooleanPref(root.getContext(), FlashUtil.PREF_NAME,
+                FlashUtil.PREF_KEY_DD_NO_SYNC));
+        swVerifyFlash.setChecked(!Common.getBooleanPref(root.getContext(), FlashUtil.PREF_NAME,
+                FlashUtil.PREF_KEY_SKIP_VERIFY));
+        swFlashChanged.setChecked(!Common.getBooleanPref(root.getContext(), FlashUtil.PREF_NAME,
+                FlashUtil.PREF_KEY_ALWAYS_FULL_FLASH));
 
         swDarkUI.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
@@ -108,6 +120,30 @@ public class SettingsFragment extends Fragment {
             }
         });
 
+        swDDSync.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton view, boolean isChecked) {
+                Common.setBooleanPref(view.getContext(), FlashUtil.PREF_NAME,
+                        FlashUtil.PREF_KEY_DD_NO_SYNC, !isChecked);
+            }
+        });
+
+        swFlashChanged.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton view, boolean isChecked) {
+                Common.setBooleanPref(view.getContext(), FlashUtil.PREF_NAME,
+                        FlashUtil.PREF_KEY_ALWAYS_FULL_FLASH, !isChecked);
+            }
+        });
+
+        swVerifyFlash.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton view, boolean isChecked) {
+                Common.setBooleanPref(view.getContext(), FlashUtil.PREF_NAME,
+                        FlashUtil.PREF_KEY_SKIP_VERIFY, !isChecked);
+            }
+        });
+
         final RashrActivity activity = (RashrActivity) getActivity();
 
         bReport.setOnClickListener(new View.OnClickListener() {
@@ -121,7 +157,13 @@ public class SettingsFragment extends Fragment {
         bShowLogs.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Common.showLogs(view.getContext());
+                final CommandJournal journal = CommandJournal.get(view.getContext());
+                Common.showLogs(view.getContext(), journal.getTail(), new Runnable() {
+                    @Override
+                    public void run() {
+                        journal.clear();
+                    }
+                });
             }
         });
 
@@ -140,6 +182,25 @@ public class SettingsFragment extends Fragment {
                 editor = activity.getSharedPreferences(Shell.PREF_NAME,
                         Context.MODE_PRIVATE).edit();
                 editor.clear().commit();
+                editor = activity.getSharedPreferences(Device.PREF_NAME,
+                        Context.MODE_PRIVATE).edit();
+                editor.clear().commit();
+            }
+        });
+
+        bRedetect.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                v.setEnabled(false);
+                activity.getDevice().redetect(new Runnable() {
+                    @Override
+                    public void run() {
+                        v.setEnabled(true);
+                        Toast
+                                .makeText(v.getContext(), R.string.device_redetected, Toast.LENGTH_SHORT)
+                                .show();
+                    }
+                });
             }
         });
 
@@ -176,6 +237,12 @@ public class SettingsFragment extends Fragment {
                 ConfirmationDialog.show();
             }
         });
+        bDDBenchmark.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                new DDBenchmark(activity).execute();
+            }
+        });
         bShowChangelog.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
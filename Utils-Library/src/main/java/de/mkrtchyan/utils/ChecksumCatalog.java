@@ -0,0 +1,248 @@
+package de.mkrtchyan.utils;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed content of a checksum file (lines like "sha1 recoveries/name.img").
+ * <p/>
+ * Catalogs are kept in memory per checksum file and are only parsed again if the length or
+ * the modification date of the file changed. Optionally the parsed entries are stored in a
+ * binary cache file, so the text file doesn't have to be parsed again after a restart.
+ */
+public class ChecksumCatalog {
+
+    private static final String TAG = "ChecksumCatalog";
+    private static final int CACHE_VERSION = 1;
+
+    private static final Map<String, ChecksumCatalog> sCatalogs = new HashMap<String, ChecksumCatalog>();
+
+    private final long mLength;
+    private final long mLastModified;
+    private final List<Entry> mEntries;
+    private final Map<String, Entry> mByName;
+    private final Map<String, List<Entry>> mByDevice = new HashMap<String, List<Entry>>();
+
+    private ChecksumCatalog(long length, long lastModified, List<Entry> entries) {
+        mLength = length;
+        mLastModified = lastModified;
+        mEntries = Collections.unmodifiableList(entries);
+        mByName = new HashMap<String, Entry>(entries.size() * 2);
+        for (Entry entry : entries) {
+            /** First entry wins, like the old line by line scan */
+            if (!mByName.containsKey(entry.getName())) {
+                mByName.put(entry.getName(), entry);
+            }
+        }
+    }
+
+    /**
+     * @param ChecksumFile file with checksums
+     * @return catalog of the file, parsed only if the file changed since the last call
+     */
+    public static ChecksumCatalog get(File ChecksumFile) throws IOException {
+        return get(ChecksumFile, null);
+    }
+
+    /**
+     * @param ChecksumFile file with checksums
+     * @param cacheFile    binary cache of the parsed file, can be null
+     * @return catalog of the file, parsed only if the file changed since the last call
+     */
+    public static ChecksumCatalog get(File ChecksumFile, File cacheFile) throws IOException {
+        String key = ChecksumFile.getAbsolutePath();
+        long length = ChecksumFile.length();
+        long lastModified = ChecksumFile.lastModified();
+        synchronized (sCatalogs) {
+            ChecksumCatalog catalog = sCatalogs.get(key);
+            if (catalog == null || catalog.mLength != length
+                    || catalog.mLastModified != lastModified) {
+                catalog = null;
+                if (cacheFile != null) {
+                    catalog = readCache(cacheFile, length, lastModified);
+                }
+                if (catalog == null) {
+                    Log.d(TAG, "Parsing " + ChecksumFile.getName());
+                    catalog = new ChecksumCatalog(length, lastModified, parse(ChecksumFile));
+                    if (cacheFile != null) {
+                        catalog.writeCache(cacheFile);
+                    }
+                }
+                sCatalogs.put(key, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * @param name file name without directory, e.g. "twrp-2.8.5.0-grouper.img"
+     * @return expected SHA1 checksum or null if the file isn't listed
+     */
+    public String getChecksum(String name) {
+        Entry entry = mByName.get(name);
+        return entry == null ? null : entry.getChecksum();
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @param codename device name, the path of an entry has to contain it (case insensitive)
+     * @return all entries for the device in order of the checksum file
+     */
+    public List<Entry> getEntries(String codename) {
+        String lowCodename = codename.toLowerCase();
+        synchronized (mByDevice) {
+            List<Entry> entries = mByDevice.get(lowCodename);
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                for (Entry entry : mEntries) {
+                    if (entry.getLowPath().contains(lowCodename)) {
+                        entries.add(entry);
+                    }
+                }
+                entries = Collections.unmodifiableList(entries);
+                mByDevice.put(lowCodename, entries);
+            }
+            return entries;
+        }
+    }
+
+    private static List<Entry> parse(File ChecksumFile) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(ChecksumFile)));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                int split = line.indexOf(' ');
+                if (split <= 0) continue;
+                entries.add(new Entry(line.substring(0, split), line.substring(split + 1).trim()));
+            }
+        } finally {
+            br.close();
+        }
+        return entries;
+    }
+
+    private static ChecksumCatalog readCache(File cacheFile, long length, long lastModified) {
+        if (!cacheFile.exists()) return null;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (dis.readInt() != CACHE_VERSION || dis.readLong() != length
+                        || dis.readLong() != lastModified) {
+                    /** Checksum file has been updated since the cache was written */
+                    return null;
+                }
+                int count = dis.readInt();
+                List<Entry> entries = new ArrayList<Entry>(count);
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(dis.readUTF(), dis.readUTF()));
+                }
+                return new ChecksumCatalog(length, lastModified, entries);
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to read " + cacheFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCache(File cacheFile) {
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+            try {
+                dos.writeInt(CACHE_VERSION);
+                dos.writeLong(mLength);
+                dos.writeLong(mLastModified);
+                dos.writeInt(mEntries.size());
+                for (Entry entry : mEntries) {
+                    dos.writeUTF(entry.getChecksum());
+                    dos.writeUTF(entry.getPath());
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (IOException e) {
+            /** Cache is optional, catalog is parsed again next time */
+            Log.d(TAG, "Failed to write " + cacheFile.getName() + ": " + e.getMessage());
+            cacheFile.delete();
+        }
+    }
+
+    public static class Entry {
+
+        private final String mChecksum;
+        private final String mPath;
+        private final String mLowPath;
+        private final String mName;
+
+        public Entry(String checksum, String path) {
+            mChecksum = checksum;
+            mPath = path;
+            mLowPath = path.toLowerCase();
+            mName = path.substring(path.lastIndexOf("/") + 1);
+        }
+
+        public String getChecksum() {
+            return mChecksum;
+        }
+
+        /**
+         * @return path like "recoveries/name.img"
+         */
+        public String getPath() {
+            return mPath;
+        }
+
+        public String getLowPath() {
+            return mLowPath;
+        }
+
+        /**
+         * @return file name without directory
+         */
+        public String getName() {
+            return mName;
+        }
+    }
+}
@@ -114,24 +114,7 @@ public class Common {
     }
 
     public static void showLogs(final Context context) {
-        final Dialog LogDialog = new Dialog(context);
-        LogDialog.setTitle(R.string.logs_title);
-        LogDialog.setContentView(R.layout.dialog_command_logs);
-        final TextView tvLog = (TextView) LogDialog.findViewById(R.id.tvSuLogs);
-        final Button bClearLog = (Button) LogDialog.findViewById(R.id.bClearLog);
-        bClearLog.setOnClickListener(new View.OnClickListener() {
-
-            @Override
-            public void onClick(View view) {
-                if (Common.deleteLogs(context)) {
-                    tvLog.setText("");
-                } else {
-                    tvLog.setText(R.string.delete_failed);
-                }
-            }
-        });
         String sLog = "";
-
         try {
             String line;
             BufferedReader br = new BufferedReader(
@@ -140,10 +123,37 @@ public class Common {
                 sLog = sLog + line + "\n";
             }
             br.close();
-            tvLog.setText(sLog);
         } catch (Exception e) {
-            LogDialog.dismiss();
+            return;
         }
+        showLogs(context, sLog, new Runnable() {
+            @Override
+            public void run() {
+                Common.deleteLogs(context);
+            }
+        });
+    }
+
+    /**
+     * Shows a log which is already in memory
+     *
+     * @param clear called when the user clears the log, deletes it
+     */
+    public static void showLogs(final Context context, String log, final Runnable clear) {
+        final Dialog LogDialog = new Dialog(context);
+        LogDialog.setTitle(R.string.logs_title);
+        LogDialog.setContentView(R.layout.dialog_command_logs);
+        final TextView tvLog = (TextView) LogDialog.findViewById(R.id.tvSuLogs);
+        final Button bClearLog = (Button) LogDialog.findViewById(R.id.bClearLog);
+        bClearLog.setOnClickListener(new View.OnClickListener() {
+
+            @Override
+            public void onClick(View view) {
+                clear.run();
+                tvLog.setText("");
+            }
+        });
+        tvLog.setText(log);
         LogDialog.show();
     }
 
@@ -164,6 +174,17 @@ public class Common {
         }
     }
 
+    /**
+     * Copies everything from in to out, both streams stay open
+     */
+    public static void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
 	static public boolean stringEndsWithArray(String string, String[] array) {
 		boolean endsWith = false;
 
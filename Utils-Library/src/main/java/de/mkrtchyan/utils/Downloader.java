@@ -31,16 +31,17 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Downloader extends AsyncTask<Void, Integer, Boolean> {
 
     private static final String TAG = "Downloader";
+    /** Hidden downloads retry without asking, so they have to give up at some point */
+    private static final int MAX_HIDDEN_ATTEMPTS = 3;
 
     private Context mContext;
     private ProgressDialog downloadDialog;
@@ -57,6 +58,10 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
     private boolean askBeforeDownload = false;
     private OnDownloadListener onDownloadListener = null;
     private boolean mErrorOccurred = false;
+    private int mConnections = 1;
+    private RangedDownload mDownload = null;
+    private MessageDigest mDigest = null;
+    private int mAttempt = 1;
 
     private IOException ioException;
     private MalformedURLException urlException;
@@ -113,34 +118,37 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
                 try {
 
                     Log.i(TAG, "Connecting to " + mURL.getHost());
-                    URLConnection connection = mURL.openConnection();
-
-                    connection.setDoOutput(true);
-                    connection.connect();
-
-                    FileOutputStream fileOutput = new FileOutputStream(mOutputFile);
-
-                    InputStream inputStream = connection.getInputStream();
-
-                    byte[] buffer = new byte[1024];
-                    int fullLength = connection.getContentLength();
-
-                    int bufferLength;
-                    int downloaded = 0;
+                    mDownload = new RangedDownload(mURL, mOutputFile);
+                    mDownload.setConnections(mConnections);
+                    if (mCheckSHA1) {
+                        /** Checksum is generated while downloading, no need to read the file again */
+                        mDigest = MessageDigest.getInstance("SHA1");
+                        mDownload.setDigest(mDigest);
+                    }
+                    mDownload.setOnProgressListener(new RangedDownload.OnProgressListener() {
+                        @Override
+                        public void onProgress(long downloaded, long length) {
+                            if (isCancelled()) {
+                                mDownload.cancel();
+                            } else if (!mHide) {
+                                publishProgress((int) downloaded, (int) length);
+                            }
+                        }
+                    });
 
                     Log.i(TAG, "Downloading " + mOutputFile.getName());
 
-                    while ((bufferLength = inputStream.read(buffer)) > 0) {
-                        fileOutput.write(buffer, 0, bufferLength);
-                        downloaded += bufferLength;
-                        if (!mHide)
-                            publishProgress(downloaded, fullLength);
-                    }
-
-                    fileOutput.close();
+                    mDownload.download();
 
                     Log.i(TAG, "Download finished!");
 
+                    if (mCheckSHA1) {
+                        return !isDownloadCorrupt(SHA1.toHex(mDigest.digest()));
+                    }
+
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                    return false;
                 } catch (MalformedURLException e) {
                     e.printStackTrace();
                     urlException = e;
@@ -190,6 +198,15 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
         downloadDialog.setProgress(progress[0]);
     }
 
+    /**
+     * Called instead of onPostExecute once doInBackground returned after the user cancelled, so
+     * nothing writes the partial data anymore
+     */
+    @Override
+    protected void onCancelled() {
+        RangedDownload.deletePartial(mOutputFile);
+    }
+
     protected void onPostExecute(Boolean success) {
         if (!mHide) {
             if (downloadDialog.isShowing()) {
@@ -210,7 +227,12 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
                 }
 
             }
-            if (mOutputFile.delete() || mRetry) {
+            /**
+             * Partial data is kept, so the next attempt resumes where this one stopped. The
+             * dialog lets the user resume, hidden downloads only retry if requested
+             */
+            boolean resumable = !mHide && RangedDownload.getPartFile(mOutputFile).exists();
+            if (mOutputFile.delete() || resumable || mRetry) {
                 loop();
             }
         }
@@ -230,6 +252,22 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
         return true;
     }
 
+    /**
+     * @param checksum SHA1 checksum generated while downloading
+     */
+    private boolean isDownloadCorrupt(String checksum) {
+        try {
+            return !SHA1.verifyChecksum(mOutputFile.getName(), checksum, ChecksumFile);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage());
+            e.printStackTrace();
+        } catch (SHA1.SHA1SumNotFound sha1SumNotFound) {
+            Log.d(TAG, sha1SumNotFound.getMessage());
+            sha1SumNotFound.printStackTrace();
+        }
+        return true;
+    }
+
     private void loop() {
         final Downloader newInstance = new Downloader(mContext, mURL, mOutputFile);
         newInstance.setOnDownloadListener(onDownloadListener);
@@ -238,6 +276,8 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
         newInstance.setHidden(mHide);
         newInstance.setAskBeforeDownload(askBeforeDownload);
         newInstance.setRetry(mRetry);
+        newInstance.setConnections(mConnections);
+        newInstance.mAttempt = mAttempt + 1;
         if (mCheckSHA1)
             newInstance.setChecksumFile(ChecksumFile);
         if (!mHide) {
@@ -257,7 +297,7 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
                     })
                     .setTitle(R.string.warning)
                     .show();
-        } else {
+        } else if (mAttempt < MAX_HIDDEN_ATTEMPTS) {
             newInstance.execute();
         }
     }
@@ -279,6 +319,14 @@ public class Downloader extends AsyncTask<Void, Integer, Boolean> {
         this.mRetry = retry;
     }
 
+    /**
+     * @param connections number of parallel connections used for large files, servers without
+     *                    Range support are always read over a single connection
+     */
+    public void setConnections(int connections) {
+        mConnections = connections;
+    }
+
     public void setCancelable(boolean cancelable) {
         mCancelable = cancelable;
     }
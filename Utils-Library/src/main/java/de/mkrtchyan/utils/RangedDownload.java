@@ -0,0 +1,538 @@
+package de.mkrtchyan.utils;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download engine used by Downloader.
+ * <p/>
+ * Data is written into a ".part" file next to the target which is only renamed to the target
+ * once the transfer is complete. If a ".part" file already exists the transfer is continued
+ * with a HTTP Range request. The ETag or Last-Modified value of the first response is kept in
+ * a ".info" file and sent as If-Range, so a file that changed on the server is fetched again.
+ * Servers ignoring the Range header answer with 200 and the whole file, in that case the
+ * partial data is dropped and the file is fetched in a single stream.
+ * <p/>
+ * Large files can optionally be split into several ranges which are fetched over parallel
+ * connections and written into a preallocated file with positional FileChannel writes.
+ * <p/>
+ * If a MessageDigest is set, every chunk is fed into it while it is written, so the checksum
+ * is known as soon as the last byte has arrived without reading the whole file again.
+ */
+public class RangedDownload {
+
+    public static final String PART_EXT = ".part";
+    private static final String INFO_EXT = ".info";
+    private static final String PARALLEL_EXT = ".parallel";
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int TIMEOUT = 15000;
+    /** Minimum length of one range, smaller files are always fetched over one connection */
+    private static final long MIN_RANGE_LENGTH = 2 * 1024 * 1024;
+    private static final long DIGEST_INTERVAL = 100;
+
+    private final URL mURL;
+    private final File mOutputFile;
+    private final File mPartFile;
+    private final File mParallelFile;
+    private final File mInfoFile;
+    private String mValidator = null;
+    private int mConnections = 1;
+    private volatile boolean mCancelled = false;
+    /** Set by the first range which fails, the other ranges stop at their next chunk */
+    private volatile boolean mRangeFailed = false;
+    private OnProgressListener mOnProgressListener = null;
+    private MessageDigest mDigest = null;
+    private final AtomicLong mDownloaded = new AtomicLong();
+    private long mLength = -1;
+
+    public RangedDownload(URL url, File outputFile) {
+        mURL = url;
+        mOutputFile = outputFile;
+        mPartFile = getPartFile(outputFile);
+        mParallelFile = new File(outputFile.getParentFile(), outputFile.getName() + PARALLEL_EXT);
+        mInfoFile = getInfoFile(outputFile);
+    }
+
+    public static File getPartFile(File outputFile) {
+        return new File(outputFile.getParentFile(), outputFile.getName() + PART_EXT);
+    }
+
+    private static File getInfoFile(File outputFile) {
+        return new File(outputFile.getParentFile(), getPartFile(outputFile).getName() + INFO_EXT);
+    }
+
+    /**
+     * Deletes the data kept for resuming, used when the user cancelled the download
+     */
+    public static void deletePartial(File outputFile) {
+        getPartFile(outputFile).delete();
+        getInfoFile(outputFile).delete();
+        new File(outputFile.getParentFile(), outputFile.getName() + PARALLEL_EXT).delete();
+    }
+
+    /**
+     * Downloads the file. Already downloaded data of a previous attempt will be reused if the
+     * server supports ranges.
+     *
+     * @return the completed output file
+     * @throws IOException if the transfer failed, downloaded data is kept for the next attempt
+     */
+    public File download() throws IOException {
+        /** A preallocated file has holes if the App was killed during a parallel download */
+        if (mParallelFile.exists() && !mParallelFile.delete()) {
+            throw new IOException(mParallelFile.getName() + " can't be deleted!");
+        }
+
+        mValidator = readValidator();
+        if (mValidator == null && mPartFile.exists() && !mPartFile.delete()) {
+            throw new IOException(mPartFile.getName() + " can't be deleted!");
+        }
+        long offset = mPartFile.exists() ? mPartFile.length() : 0;
+        HttpURLConnection connection = null;
+        try {
+            connection = openRange(offset, -1);
+            int response = connection.getResponseCode();
+            if (response == 416 && offset > 0) {
+                /** Requested range starts at the end of the file, previous attempt was complete */
+                mLength = offset;
+                mDownloaded.set(offset);
+                digestPartFile(offset);
+                return finish();
+            }
+            if (response == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    throw new IOException("Server answered with unexpected range "
+                            + connection.getHeaderField("Content-Range"));
+                }
+                mLength = range[2];
+                saveValidator(connection);
+                if (offset == 0 && mConnections > 1 && mLength >= 2 * MIN_RANGE_LENGTH) {
+                    connection.disconnect();
+                    connection = null;
+                    downloadParallel();
+                    return finish();
+                }
+                digestPartFile(offset);
+            } else if (response == HttpURLConnection.HTTP_OK) {
+                /** Server ignores Range (or file changed since last attempt), start from zero */
+                offset = 0;
+                if (mDigest != null) {
+                    mDigest.reset();
+                }
+                mLength = connection.getContentLength();
+                saveValidator(connection);
+            } else {
+                throw new IOException("Server returned HTTP " + response + " for " + mURL);
+            }
+            mDownloaded.set(offset);
+            publishProgress();
+            writeStream(connection.getInputStream(), offset > 0);
+            if (mLength >= 0 && mPartFile.length() != mLength) {
+                throw new IOException("Connection closed after " + mPartFile.length() + " of "
+                        + mLength + " bytes");
+            }
+            return finish();
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (mValidator == null && mPartFile.exists()) {
+                /** Without validator there is no way to check if a later resume is safe */
+                mPartFile.delete();
+            }
+        }
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @param connections number of parallel connections used for large files (1 = single stream)
+     */
+    public void setConnections(int connections) {
+        mConnections = Math.max(1, connections);
+    }
+
+    /**
+     * @param digest is updated with the content of the file while it is downloaded. After
+     *               download() returned, digest.digest() is the checksum of the whole file
+     */
+    public void setDigest(MessageDigest digest) {
+        mDigest = digest;
+    }
+
+    public void setOnProgressListener(OnProgressListener onProgressListener) {
+        mOnProgressListener = onProgressListener;
+    }
+
+    /**
+     * @return length of the file on the server or -1 if unknown
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    private File finish() throws IOException {
+        if (mOutputFile.exists() && !mOutputFile.delete()) {
+            throw new IOException(mOutputFile.getName() + " can't be deleted!");
+        }
+        if (!mPartFile.renameTo(mOutputFile)) {
+            throw new IOException("Failed rename File into " + mOutputFile);
+        }
+        mInfoFile.delete();
+        return mOutputFile;
+    }
+
+    private HttpURLConnection openRange(long start, long end) throws IOException {
+        URLConnection urlConnection = mURL.openConnection();
+        if (!(urlConnection instanceof HttpURLConnection)) {
+            throw new IOException("Ranged downloads are only supported over HTTP: " + mURL);
+        }
+        HttpURLConnection connection = (HttpURLConnection) urlConnection;
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        /** Compressed responses would break byte offsets */
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+        if (start > 0 && mValidator != null) {
+            /** Server sends the whole file if it was modified since the partial download */
+            connection.setRequestProperty("If-Range", mValidator);
+        }
+        connection.connect();
+        return connection;
+    }
+
+    private void writeStream(InputStream inputStream, boolean append) throws IOException {
+        FileOutputStream fileOutput = new FileOutputStream(mPartFile, append);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bufferLength;
+            while ((bufferLength = inputStream.read(buffer)) != -1) {
+                checkCancelled();
+                fileOutput.write(buffer, 0, bufferLength);
+                if (mDigest != null) {
+                    mDigest.update(buffer, 0, bufferLength);
+                }
+                mDownloaded.addAndGet(bufferLength);
+                publishProgress();
+            }
+        } finally {
+            fileOutput.close();
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Splits the file into ranges, each range is fetched over its own connection and written
+     * directly to its position in the preallocated file.
+     */
+    private void downloadParallel() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mParallelFile, "rw");
+        final FileChannel channel = raf.getChannel();
+        int connections = (int) Math.min(mConnections, mLength / MIN_RANGE_LENGTH);
+        long rangeLength = mLength / connections;
+        final long[] starts = new long[connections];
+        final long[] ends = new long[connections];
+        final AtomicLong[] progress = new AtomicLong[connections];
+        for (int i = 0; i < connections; i++) {
+            starts[i] = i * rangeLength;
+            ends[i] = i == connections - 1 ? mLength - 1 : starts[i] + rangeLength - 1;
+            progress[i] = new AtomicLong();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        IOException failure = null;
+        long digested = 0;
+        mRangeFailed = false;
+        try {
+            raf.setLength(mLength);
+            mDownloaded.set(0);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < connections; i++) {
+                final int range = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            downloadRange(channel, starts[range], ends[range], progress[range]);
+                        } catch (IOException e) {
+                            /** Stop the other ranges, they can't be used anyway */
+                            mRangeFailed = true;
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            if (mDigest != null) {
+                try {
+                    digested = digestWhileRunning(channel, results, starts, ends, progress);
+                } catch (InterruptedException e) {
+                    mRangeFailed = true;
+                    failure = new IOException("Download interrupted");
+                }
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    mRangeFailed = true;
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : (IOException) new IOException(e.getCause().toString())
+                                .initCause(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    mRangeFailed = true;
+                    if (failure == null) failure = new IOException("Download interrupted");
+                }
+            }
+            if (failure == null && mDigest != null) {
+                updateDigest(channel, digested, mLength);
+            }
+        } finally {
+            executor.shutdownNow();
+            if (failure != null) {
+                /**
+                 * Keep the completed prefix of the file so the next attempt can resume with a
+                 * single ranged request
+                 */
+                channel.truncate(getCompletedPrefix(starts, ends, progress));
+            }
+            channel.close();
+            raf.close();
+        }
+        if (!mParallelFile.renameTo(mPartFile)) {
+            throw new IOException("Failed rename File into " + mPartFile);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Length of the data from the beginning of the file up to the first range which isn't
+     * complete yet
+     */
+    private static long getCompletedPrefix(long[] starts, long[] ends, AtomicLong[] progress) {
+        long prefix = 0;
+        for (int i = 0; i < starts.length; i++) {
+            prefix += progress[i].get();
+            if (starts[i] + progress[i].get() <= ends[i]) break;
+        }
+        return prefix;
+    }
+
+    /**
+     * Ranges arrive out of order, so the digest follows the completed prefix of the file while
+     * the ranges are still running. The data is read back right after it was written and comes
+     * out of the page cache instead of the storage.
+     *
+     * @return number of bytes already fed into the digest
+     */
+    private long digestWhileRunning(FileChannel channel, List<Future<Void>> results,
+                                    long[] starts, long[] ends, AtomicLong[] progress)
+            throws IOException, InterruptedException {
+        long digested = 0;
+        boolean running = true;
+        while (running && !mRangeFailed) {
+            running = false;
+            for (Future<Void> result : results) {
+                running = running || !result.isDone();
+            }
+            digested = updateDigest(channel, digested, getCompletedPrefix(starts, ends, progress));
+            if (running) {
+                Thread.sleep(DIGEST_INTERVAL);
+            }
+        }
+        return digested;
+    }
+
+    /**
+     * Feeds the data of a previous attempt into the digest before the transfer continues
+     */
+    private void digestPartFile(long length) throws IOException {
+        if (mDigest == null || length == 0) return;
+        FileInputStream fis = new FileInputStream(mPartFile);
+        try {
+            updateDigest(fis.getChannel(), 0, length);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private long updateDigest(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (from < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, to - from));
+            int read = channel.read(buffer, from);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + from);
+            }
+            mDigest.update(buffer.array(), 0, read);
+            from += read;
+        }
+        return from;
+    }
+
+    private void downloadRange(FileChannel channel, long start, long end, AtomicLong progress)
+            throws IOException {
+        HttpURLConnection connection = openRange(start, end);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Server does not answer range " + start + "-" + end);
+            }
+            InputStream inputStream = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = start;
+                int bufferLength;
+                while (position <= end && (bufferLength = inputStream.read(buffer)) != -1) {
+                    checkCancelled();
+                    if (mRangeFailed) {
+                        throw new IOException("Range " + start + "-" + end
+                                + " stopped, another range failed");
+                    }
+                    bufferLength = (int) Math.min(bufferLength, end - position + 1);
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, bufferLength);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                    progress.addAndGet(bufferLength);
+                    mDownloaded.addAndGet(bufferLength);
+                    publishProgress();
+                }
+                if (position <= end) {
+                    throw new IOException("Connection closed at " + position + " of range "
+                            + start + "-" + end);
+                }
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Remembers ETag (preferred, if strong) or Last-Modified of the response for If-Range
+     */
+    private void saveValidator(HttpURLConnection connection) throws IOException {
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = connection.getHeaderField("Last-Modified");
+        }
+        mValidator = validator;
+        if (validator == null) {
+            mInfoFile.delete();
+        } else {
+            FileOutputStream fo = new FileOutputStream(mInfoFile);
+            try {
+                fo.write(validator.getBytes());
+            } finally {
+                fo.close();
+            }
+        }
+    }
+
+    private String readValidator() {
+        if (!mInfoFile.exists()) return null;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(mInfoFile));
+            try {
+                String validator = br.readLine();
+                return validator == null || validator.equals("") ? null : validator;
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled) {
+            throw new IOException("Download cancelled");
+        }
+    }
+
+    private void publishProgress() {
+        if (mOnProgressListener != null) {
+            mOnProgressListener.onProgress(mDownloaded.get(), mLength);
+        }
+    }
+
+    /**
+     * Parses a Content-Range header like "bytes 100-199/200"
+     *
+     * @return {start, end, length} (length = -1 if unknown) or null if header is invalid
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return null;
+        try {
+            String range = contentRange.substring(6).trim();
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            if (dash < 0 || slash < dash) return null;
+            String length = range.substring(slash + 1);
+            return new long[]{
+                    Long.parseLong(range.substring(0, dash)),
+                    Long.parseLong(range.substring(dash + 1, slash)),
+                    length.equals("*") ? -1 : Long.parseLong(length)
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public interface OnProgressListener {
+        void onProgress(long downloaded, long length);
+    }
+}
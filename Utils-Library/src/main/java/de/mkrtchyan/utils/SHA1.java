@@ -23,17 +23,23 @@ package de.mkrtchyan.utils;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SHA1 {
 
     private static final String TAG = "SHA1";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     /**
      * Verifies file's SHA1 checksum
@@ -43,49 +49,120 @@ public class SHA1 {
      * @return true if the expeceted SHA1 checksum matches the file's SHA1 checksum; false otherwise.
      */
     public static boolean verifyChecksum(final File file, final File ChecksumFile) throws IOException, SHA1SumNotFound {
-        String line;
-        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(ChecksumFile)));
-        while ((line = br.readLine()) != null) {
-            if (line.endsWith(file.getName())) {
-                Log.d(TAG, "Checksum found!");
-                if (line.startsWith(generateChecksum(file))) {
-                    Log.d(TAG, "Checksum correct");
-                    br.close();
-                    return true;
-                } else {
-                    Log.d(TAG, "Checksum incorrect");
-                    br.close();
-                    return false;
-                }
-            }
+        return verifyChecksum(file.getName(), generateChecksum(file), ChecksumFile);
+    }
+
+    /**
+     * Verifies an already calculated SHA1 checksum, e.g. one that was generated while the file
+     * was downloaded
+     *
+     * @param fileName     name of the file the checksum belongs to
+     * @param checksum     SHA1 checksum as hex string
+     * @param ChecksumFile the file with generated checksum
+     * @return true if the expected SHA1 checksum matches checksum; false otherwise.
+     */
+    public static boolean verifyChecksum(final String fileName, final String checksum, final File ChecksumFile)
+            throws IOException, SHA1SumNotFound {
+        if (getChecksum(fileName, ChecksumFile).equalsIgnoreCase(checksum)) {
+            Log.d(TAG, "Checksum correct");
+            return true;
+        } else {
+            Log.d(TAG, "Checksum incorrect");
+            return false;
         }
-        Log.d(TAG, "Checksum not found! Throwing Exception!");
-        throw new SHA1SumNotFound("SHA1Checksum not found!");
     }
 
-    public static String generateChecksum(File file) throws IOException {
+    /**
+     * @param fileName     name of the file
+     * @param ChecksumFile the file with generated checksum
+     * @return the expected SHA1 checksum of the file
+     */
+    public static String getChecksum(final String fileName, final File ChecksumFile) throws IOException, SHA1SumNotFound {
+        String checksum = ChecksumCatalog.get(ChecksumFile).getChecksum(fileName);
+        if (checksum == null) {
+            Log.d(TAG, "Checksum not found! Throwing Exception!");
+            throw new SHA1SumNotFound("SHA1Checksum not found!");
+        }
+        Log.d(TAG, "Checksum found!");
+        return checksum;
+    }
 
+    public static String generateChecksum(File file) throws IOException {
         try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-            FileInputStream fis = new FileInputStream(file);
+            return generateChecksum(file, "SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
 
-            byte[] data = new byte[1024];
+    /**
+     * @param algorithm MessageDigest algorithm like SHA1, SHA-256 or MD5
+     * @return checksum of the file as hex string
+     */
+    public static String generateChecksum(File file, String algorithm) throws IOException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] data = new byte[BUFFER_SIZE];
             int read;
             while ((read = fis.read(data)) != -1) {
-                sha1.update(data, 0, read);
+                digest.update(data, 0, read);
             }
-            byte[] hashBytes = sha1.digest();
+        } finally {
+            fis.close();
+        }
+        return toHex(digest.digest());
+    }
 
-            StringBuilder sb = new StringBuilder();
-            for (byte i : hashBytes) {
-                sb.append(Integer.toString((i & 0xff) + 0x100, 16).substring(1));
+    /**
+     * Hashes several files in parallel, one file per CPU core at a time
+     *
+     * @param algorithm MessageDigest algorithm like SHA1, SHA-256 or MD5
+     * @return checksums as hex strings in the order of the files
+     */
+    public static Map<File, String> generateChecksums(final String algorithm, File... files)
+            throws IOException, NoSuchAlgorithmException {
+        /** Fail early on an unknown algorithm instead of once per file */
+        MessageDigest.getInstance(algorithm);
+        Map<File, String> checksums = new LinkedHashMap<File, String>();
+        if (files.length == 0) return checksums;
+        int threads = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<File, Future<String>> results = new LinkedHashMap<File, Future<String>>();
+            for (final File file : files) {
+                results.put(file, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return generateChecksum(file, algorithm);
+                    }
+                }));
             }
+            for (Map.Entry<File, Future<String>> result : results.entrySet()) {
+                try {
+                    checksums.put(result.getKey(), result.getValue().get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : (IOException) new IOException(e.getCause().toString())
+                            .initCause(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            return checksums;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return "";
+    public static String toHex(byte[] hashBytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte i : hashBytes) {
+            sb.append(Integer.toString((i & 0xff) + 0x100, 16).substring(1));
         }
+        return sb.toString();
     }
 
     public static class SHA1SumNotFound extends Exception {
@@ -24,65 +24,193 @@ package de.mkrtchyan.utils;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+/**
+ * Extracts zip archives.
+ * <p/>
+ * Directories are created first, then the files are extracted in parallel by a small pool of
+ * workers. Every worker reuses its own 64 KB buffer for all entries it extracts. Entries whose
+ * path would end up outside of the output folder (../ or absolute names, "zip slip") are
+ * rejected before anything is written.
+ */
 public class Unzipper {
 
     private static final String TAG = "Unzipper";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** More workers don't help, they all read from the same archive */
+    private static final int MAX_THREADS = 4;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final File mArchive, mOutputFolder;
+    private int mThreads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+    private OnProgressListener mOnProgressListener = null;
+
+    public Unzipper(File archive, File outputFolder) {
+        mArchive = archive;
+        mOutputFolder = outputFolder;
+    }
 
     static public void unzip(final File zipFile, final File OutputFolder) {
-        OutputFolder.mkdir();
         Log.d(TAG, "unzipping " + zipFile.getName() + " to " + OutputFolder.getAbsolutePath());
         new UnZipTask().execute(zipFile, OutputFolder);
     }
 
+    /**
+     * Extracts a single entry on the calling thread
+     */
     public static void unzipEntry(ZipFile zipfile, ZipEntry entry,
                                   File outputDir) throws IOException {
-
+        File output = getOutputFile(outputDir, entry);
         if (entry.isDirectory()) {
-            new File(outputDir, entry.getName()).mkdir();
-            return;
+            mkdirs(output);
+        } else {
+            extract(zipfile, entry, output);
         }
+    }
 
-        File outputFile = new File(outputDir, entry.getName());
-        if (!outputFile.getParentFile().exists()) {
-            outputFile.getParentFile().mkdir();
+    /**
+     * Extracts the whole archive and waits until all entries are written. The first failing
+     * entry stops the others.
+     */
+    public void extract() throws IOException {
+        Log.d(TAG, "unzipping " + mArchive.getName() + " to " + mOutputFolder.getAbsolutePath());
+        final ZipFile zipfile = new ZipFile(mArchive);
+        ExecutorService executor = null;
+        try {
+            mkdirs(mOutputFolder);
+            List<ZipEntry> files = new ArrayList<ZipEntry>();
+            List<File> outputs = new ArrayList<File>();
+            for (Enumeration<? extends ZipEntry> e = zipfile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                File output = getOutputFile(mOutputFolder, entry);
+                if (entry.isDirectory()) {
+                    mkdirs(output);
+                } else {
+                    /** Create the parents here, so the workers don't race on mkdirs() */
+                    mkdirs(output.getParentFile());
+                    files.add(entry);
+                    outputs.add(output);
+                }
+            }
+            final int entries = files.size();
+            if (entries == 0) return;
+            final AtomicInteger extracted = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(mThreads, entries)));
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < entries; i++) {
+                final ZipEntry entry = files.get(i);
+                final File output = outputs.get(i);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extract(zipfile, entry, output);
+                        if (mOnProgressListener != null) {
+                            mOnProgressListener.onEntryExtracted(entry,
+                                    extracted.incrementAndGet(), entries);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : (IOException) new IOException(e.getCause().toString())
+                            .initCause(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("Extraction interrupted");
+                }
+            }
+        } finally {
+            if (executor != null) executor.shutdownNow();
+            zipfile.close();
         }
+    }
 
+    /**
+     * @param threads number of entries extracted at the same time
+     */
+    public void setThreads(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * The listener is called from the worker threads
+     */
+    public void setOnProgressListener(OnProgressListener onProgressListener) {
+        mOnProgressListener = onProgressListener;
+    }
+
+    private static void extract(ZipFile zipfile, ZipEntry entry, File output)
+            throws IOException {
         Log.v(TAG, "Extracting: " + entry);
-        BufferedInputStream inputStream = new BufferedInputStream(zipfile.getInputStream(entry));
-        BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile));
+        byte[] buffer = sBuffer.get();
+        InputStream inputStream = zipfile.getInputStream(entry);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(output);
+            try {
+                int bufferLength;
+                while ((bufferLength = inputStream.read(buffer)) > 0) {
+                    outputStream.write(buffer, 0, bufferLength);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @throws IOException if the entry would be written outside of outputDir
+     */
+    private static File getOutputFile(File outputDir, ZipEntry entry) throws IOException {
+        File output = new File(outputDir, entry.getName());
+        String dir = outputDir.getCanonicalPath();
+        String path = output.getCanonicalPath();
+        if (!path.equals(dir) && !path.startsWith(dir + File.separator)) {
+            throw new IOException("Entry " + entry.getName() + " is outside of " + outputDir);
+        }
+        return output;
+    }
 
-        int bufferLength;
-        byte[] buffer = new byte[1024];
-        while ((bufferLength = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, bufferLength);
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir);
         }
-        outputStream.close();
-        inputStream.close();
     }
 
     private static class UnZipTask extends AsyncTask<File, Void, Boolean> {
 
-        @SuppressWarnings("rawtypes")
         @Override
         protected Boolean doInBackground(File... params) {
 
             File archive = params[0];
             try {
-                File destination = params[1];
-                ZipFile zipfile = new ZipFile(archive);
-                for (Enumeration e = zipfile.entries(); e.hasMoreElements(); ) {
-                    ZipEntry entry = (ZipEntry) e.nextElement();
-                    unzipEntry(zipfile, entry, destination);
-                }
+                new Unzipper(archive, params[1]).extract();
             } catch (Exception e) {
                 Log.e(TAG, "Error while extracting file " + archive.getName(), e);
                 return false;
@@ -93,4 +221,12 @@ public class Unzipper {
 
 
     }
-}
\ No newline at end of file
+
+    public interface OnProgressListener {
+        /**
+         * @param extracted number of entries extracted so far, including this one
+         * @param entries   number of files in the archive
+         */
+        void onEntryExtracted(ZipEntry entry, int extracted, int entries);
+    }
+}
@@ -0,0 +1,202 @@
+package de.mkrtchyan.utils;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ChecksumCatalogTest {
+
+    /** About the size of recovery_sums */
+    private static final int ENTRIES = 4000;
+    private static final int LOOKUPS = 200;
+    /** Shipped with the App, unit tests run in the module folder */
+    private static final File BUNDLED_SUMS = new File("../RashrApp/src/main/res/raw/recovery_sums");
+
+    private File mDir;
+    private File mSums;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("catalog", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mSums = new File(mDir, "recovery_sums");
+        StringBuilder sums = new StringBuilder();
+        for (int i = 0; i < ENTRIES; i++) {
+            sums.append(checksum(i)).append(" recoveries/twrp-2.8.").append(i)
+                    .append("-device").append(i % 100).append(".img\n");
+        }
+        write(mSums, sums.toString());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void looksUpChecksumByName() throws IOException {
+        ChecksumCatalog catalog = ChecksumCatalog.get(mSums);
+        assertEquals(ENTRIES, catalog.getEntries().size());
+        assertEquals(checksum(0), catalog.getChecksum("twrp-2.8.0-device0.img"));
+        assertEquals(checksum(ENTRIES - 1),
+                catalog.getChecksum("twrp-2.8." + (ENTRIES - 1) + "-device99.img"));
+        assertNull(catalog.getChecksum("recoveries/twrp-2.8.0-device0.img"));
+        assertNull(catalog.getChecksum("missing.img"));
+    }
+
+    @Test
+    public void firstEntryWins() throws IOException {
+        write(mSums, "aaaa recoveries/a.img\nbbbb kernels/a.img\n  \nbroken\n");
+        ChecksumCatalog catalog = ChecksumCatalog.get(mSums);
+        assertEquals(2, catalog.getEntries().size());
+        assertEquals("aaaa", catalog.getChecksum("a.img"));
+    }
+
+    @Test
+    public void findsEntriesOfDevice() throws IOException {
+        write(mSums, "0123 recoveries/twrp-Grouper.img\n"
+                + "cafe recoveries/cwm-flo.img\n"
+                + "4567 recoveries/philz-grouper.img\n");
+        ChecksumCatalog catalog = ChecksumCatalog.get(mSums);
+        List<ChecksumCatalog.Entry> entries = catalog.getEntries("GROUPER");
+        assertEquals(2, entries.size());
+        assertEquals("twrp-Grouper.img", entries.get(0).getName());
+        assertEquals("philz-grouper.img", entries.get(1).getName());
+        assertSame(entries, catalog.getEntries("grouper"));
+        /** A codename must not match inside the checksum */
+        assertTrue(catalog.getEntries("cafe").isEmpty());
+    }
+
+    @Test
+    public void parsesChangedFileAgain() throws IOException {
+        ChecksumCatalog catalog = ChecksumCatalog.get(mSums);
+        assertSame(catalog, ChecksumCatalog.get(mSums));
+        write(mSums, "ffff recoveries/new.img\n");
+        ChecksumCatalog changed = ChecksumCatalog.get(mSums);
+        assertEquals(1, changed.getEntries().size());
+        assertEquals("ffff", changed.getChecksum("new.img"));
+    }
+
+    @Test
+    public void readsBinaryCache() throws IOException {
+        File cache = new File(mDir, "recovery_sums.cache");
+        ChecksumCatalog.get(mSums, cache);
+        assertTrue(cache.length() > 0);
+
+        /**
+         * Same length and date under another name, so the copy is only found in the cache.
+         * Its content differs, which shows that it wasn't parsed.
+         */
+        File copy = new File(mDir, "copy_sums");
+        write(copy, "0000 recoveries/x.img\n");
+        write(mSums, "1111 recoveries/x.img\n");
+        assertTrue(copy.setLastModified(1000000000L) && mSums.setLastModified(1000000000L));
+        ChecksumCatalog.get(mSums, cache);
+        assertEquals("1111", ChecksumCatalog.get(copy, cache).getChecksum("x.img"));
+    }
+
+    /**
+     * Compares a lookup through the catalog with the line by line scan SHA1.getChecksum did
+     * before, on the recovery_sums shipped with the App. The catalog lookup still checks length
+     * and date of the file every time.
+     */
+    @Test
+    public void benchmarkLookup() throws IOException {
+        assumeTrue("needs the recovery_sums of RashrApp", BUNDLED_SUMS.exists());
+        List<ChecksumCatalog.Entry> entries = ChecksumCatalog.get(BUNDLED_SUMS).getEntries();
+        String[] names = new String[LOOKUPS];
+        String[] checksums = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            ChecksumCatalog.Entry entry = entries.get((int) ((long) i * entries.size() / LOOKUPS));
+            names[i] = entry.getName();
+            checksums[i] = entry.getChecksum();
+        }
+        long scan = 0, catalog = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                assertNotNull(scan(BUNDLED_SUMS, names[i]));
+            }
+            scan = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                assertEquals(checksums[i],
+                        ChecksumCatalog.get(BUNDLED_SUMS).getChecksum(names[i]));
+            }
+            catalog = System.nanoTime() - start;
+        }
+        assertTrue(String.format("%d entries: line scan %.1f us/lookup, catalog %.1f us/lookup",
+                entries.size(), scan / 1000.0 / LOOKUPS, catalog / 1000.0 / LOOKUPS),
+                catalog < scan);
+    }
+
+    private static String scan(File sums, String fileName) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(sums)));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.endsWith(fileName)) {
+                    return line.trim().split("\\s+")[0];
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return null;
+    }
+
+    private static String checksum(int i) {
+        return String.format("%040x", i * 2654435761L);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter fw = new FileWriter(file);
+        try {
+            fw.write(content);
+        } finally {
+            fw.close();
+        }
+    }
+}
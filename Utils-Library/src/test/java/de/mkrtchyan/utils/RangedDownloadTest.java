@@ -0,0 +1,333 @@
+package de.mkrtchyan.utils;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs RangedDownload against a local HTTP server which can ignore Range requests, change the
+ * file between two attempts or drop the connection in the middle of a transfer.
+ */
+public class RangedDownloadTest {
+
+    /** Large enough to be split into two ranges when parallel connections are requested */
+    private static final int LENGTH = 5 * 1024 * 1024;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+    private File mDir;
+    private File mOutputFile;
+    private URL mURL;
+    private byte[] mContent;
+    private volatile String mETag = "\"v1\"";
+    private volatile boolean mRangeSupport = true;
+    /** Number of bytes sent before the next response is cut off, -1 sends everything */
+    private volatile int mDropAfter = -1;
+    /** Closed ranges not starting at zero fail, the others are sent slowly */
+    private volatile boolean mFailRanges = false;
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[LENGTH];
+        new Random(42).nextBytes(mContent);
+        mDir = File.createTempFile("ranged", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mOutputFile = new File(mDir, "recovery.img");
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/recovery.img", new FileHandler());
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+        mURL = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/recovery.img");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void downloadsWholeFile() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setDigest(digest);
+        assertEquals(mOutputFile, download.download());
+        assertArrayEquals(mContent, read(mOutputFile));
+        assertArrayEquals(sha1(mContent), digest.digest());
+        assertEquals(LENGTH, download.getLength());
+        assertFalse(RangedDownload.getPartFile(mOutputFile).exists());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamIfRangesAreIgnored() throws Exception {
+        mRangeSupport = false;
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setConnections(4);
+        download.setDigest(digest);
+        download.download();
+        assertArrayEquals(mContent, read(mOutputFile));
+        assertArrayEquals(sha1(mContent), digest.digest());
+        assertEquals("only the first request may be sent", 1, mRanges.size());
+    }
+
+    @Test
+    public void dropsPartialDataIfRangesAreIgnored() throws Exception {
+        mDropAfter = LENGTH / 3;
+        try {
+            new RangedDownload(mURL, mOutputFile).download();
+            fail("Connection was cut off, download must fail");
+        } catch (IOException expected) {
+            assertTrue(RangedDownload.getPartFile(mOutputFile).exists());
+        }
+
+        /** Server loses its Range support, the kept data must not be prepended */
+        mRangeSupport = false;
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setDigest(digest);
+        download.download();
+        assertArrayEquals(mContent, read(mOutputFile));
+        assertArrayEquals(sha1(mContent), digest.digest());
+    }
+
+    @Test
+    public void resumesInterruptedDownload() throws Exception {
+        mDropAfter = LENGTH / 3;
+        try {
+            new RangedDownload(mURL, mOutputFile).download();
+            fail("Connection was cut off, download must fail");
+        } catch (IOException expected) {
+            /** Expected, data received so far stays in the .part file */
+        }
+        long kept = RangedDownload.getPartFile(mOutputFile).length();
+        assertTrue(kept > 0 && kept < LENGTH);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setDigest(digest);
+        download.download();
+        assertEquals("bytes=" + kept + "-", mRanges.get(mRanges.size() - 1));
+        assertArrayEquals(mContent, read(mOutputFile));
+        assertArrayEquals(sha1(mContent), digest.digest());
+    }
+
+    @Test
+    public void refetchesFileChangedOnServer() throws Exception {
+        mDropAfter = LENGTH / 3;
+        try {
+            new RangedDownload(mURL, mOutputFile).download();
+            fail("Connection was cut off, download must fail");
+        } catch (IOException expected) {
+            assertTrue(RangedDownload.getPartFile(mOutputFile).exists());
+        }
+
+        byte[] changed = new byte[LENGTH / 2];
+        new Random(7).nextBytes(changed);
+        mContent = changed;
+        mETag = "\"v2\"";
+        new RangedDownload(mURL, mOutputFile).download();
+        assertArrayEquals(changed, read(mOutputFile));
+    }
+
+    @Test
+    public void downloadsRangesInParallel() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setConnections(4);
+        download.setDigest(digest);
+        download.download();
+        assertArrayEquals(mContent, read(mOutputFile));
+        assertArrayEquals(sha1(mContent), digest.digest());
+        /** First probe plus one request per range */
+        assertEquals(3, mRanges.size());
+    }
+
+    @Test
+    public void failedRangeStopsOtherRanges() throws Exception {
+        mFailRanges = true;
+        RangedDownload download = new RangedDownload(mURL, mOutputFile);
+        download.setConnections(2);
+        download.setDigest(MessageDigest.getInstance("SHA-1"));
+        try {
+            download.download();
+            fail("Second range failed, download must fail");
+        } catch (IOException expected) {
+            /** Expected, the first range has been stopped before it was complete */
+        }
+        assertFalse(download.isCancelled());
+        long kept = RangedDownload.getPartFile(mOutputFile).length();
+        assertTrue("first range wasn't stopped, kept " + kept, kept < LENGTH / 2);
+    }
+
+    @Test
+    public void deletesPartialData() throws Exception {
+        mDropAfter = LENGTH / 3;
+        try {
+            new RangedDownload(mURL, mOutputFile).download();
+            fail("Connection was cut off, download must fail");
+        } catch (IOException expected) {
+            assertTrue(RangedDownload.getPartFile(mOutputFile).exists());
+        }
+        RangedDownload.deletePartial(mOutputFile);
+        assertEquals(0, mDir.list().length);
+    }
+
+    @Test
+    public void replacesStaleOutputFile() throws Exception {
+        FileOutputStream fo = new FileOutputStream(mOutputFile);
+        try {
+            fo.write(1);
+        } finally {
+            fo.close();
+        }
+        new RangedDownload(mURL, mOutputFile).download();
+        assertArrayEquals(mContent, read(mOutputFile));
+        /** Neither .part nor .info may be left behind */
+        assertEquals(1, mDir.list().length);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = fis.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return data;
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static byte[] sha1(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+
+    private class FileHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] content = mContent;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            mRanges.add(range);
+            exchange.getResponseHeaders().set("ETag", mETag);
+            int start = 0;
+            int end = content.length - 1;
+            int status = 200;
+            if (mRangeSupport && range != null && range.startsWith("bytes=")
+                    && (ifRange == null || ifRange.equals(mETag))) {
+                String[] bounds = range.substring(6).split("-", 2);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].equals("")) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                if (start >= content.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                if (mFailRanges && start > 0 && !bounds[1].equals("")) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+            int length = end - start + 1;
+            int send = length;
+            synchronized (RangedDownloadTest.this) {
+                if (mDropAfter >= 0) {
+                    send = Math.min(length, mDropAfter);
+                    mDropAfter = -1;
+                }
+            }
+            exchange.sendResponseHeaders(status, length);
+            OutputStream os = exchange.getResponseBody();
+            try {
+                if (mFailRanges) {
+                    for (int sent = 0; sent < send; sent += 64 * 1024) {
+                        os.write(content, start + sent, Math.min(64 * 1024, send - sent));
+                        os.flush();
+                        sleep(20);
+                    }
+                } else {
+                    os.write(content, start, send);
+                    os.flush();
+                }
+            } finally {
+                /** Closing a response with missing bytes drops the connection */
+                exchange.close();
+            }
+        }
+    }
+}
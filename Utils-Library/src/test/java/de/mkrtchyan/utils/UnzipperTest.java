@@ -0,0 +1,232 @@
+package de.mkrtchyan.utils;
+
+/**
+ * Copyright (c) 2015 Aschot Mkrtchyan
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UnzipperTest {
+
+    private File mDir;
+    private File mArchive;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("unzipper", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mArchive = new File(mDir, "archive.zip");
+        mOutput = new File(mDir, "out");
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    @Test
+    public void extractsNestedEntries() throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            /** No entries for the parent directories, like many archives */
+            put(zos, "bin/busybox", content(1, 100000));
+            put(zos, "lib/arm/deep/libfoo.so", content(2, 3000));
+            put(zos, "empty/", null);
+            put(zos, "README", new byte[0]);
+        } finally {
+            zos.close();
+        }
+        final AtomicInteger calls = new AtomicInteger();
+        Unzipper unzipper = new Unzipper(mArchive, mOutput);
+        unzipper.setThreads(2);
+        unzipper.setOnProgressListener(new Unzipper.OnProgressListener() {
+            @Override
+            public void onEntryExtracted(ZipEntry entry, int extracted, int entries) {
+                assertEquals(3, entries);
+                calls.incrementAndGet();
+            }
+        });
+        unzipper.extract();
+        assertEquals(3, calls.get());
+        assertArrayEquals(content(1, 100000), read(new File(mOutput, "bin/busybox")));
+        assertArrayEquals(content(2, 3000), read(new File(mOutput, "lib/arm/deep/libfoo.so")));
+        assertEquals(0, new File(mOutput, "README").length());
+        assertTrue(new File(mOutput, "empty").isDirectory());
+    }
+
+    @Test
+    public void rejectsEntriesOutsideOfOutputFolder() throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            put(zos, "fine.txt", content(3, 10));
+            put(zos, "../evil.txt", content(4, 10));
+        } finally {
+            zos.close();
+        }
+        try {
+            new Unzipper(mArchive, mOutput).extract();
+            fail("zip slip entry must be rejected");
+        } catch (IOException expected) {
+            /** Checked before anything is written */
+        }
+        assertFalse(new File(mDir, "evil.txt").exists());
+        assertFalse(new File(mOutput, "fine.txt").exists());
+    }
+
+    /**
+     * Compares the old way (one entry after another, buffered streams with a 1 KB array per
+     * entry) with extract() on one and on all workers. Every run extracts into a new folder.
+     */
+    @Test
+    public void benchmarkExtraction() throws IOException {
+        final int entries = 32;
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            for (int i = 0; i < entries; i++) {
+                put(zos, "part" + i % 4 + "/file" + i, compressible(i, 512 * 1024));
+            }
+        } finally {
+            zos.close();
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            extractLikeBefore(new File(mDir, "old" + round));
+            long old = System.nanoTime() - start;
+            Unzipper single = new Unzipper(mArchive, new File(mDir, "single" + round));
+            single.setThreads(1);
+            start = System.nanoTime();
+            single.extract();
+            long one = System.nanoTime() - start;
+            start = System.nanoTime();
+            new Unzipper(mArchive, new File(mDir, "parallel" + round)).extract();
+            long parallel = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.println(String.format("%d x 512 KB on %d cores: old %d ms,"
+                                + " extract() 1 thread %d ms, default threads %d ms", entries,
+                        cores, old / 1000000, one / 1000000, parallel / 1000000));
+            }
+        }
+        for (int i = 0; i < entries; i++) {
+            String name = "part" + i % 4 + "/file" + i;
+            assertArrayEquals(read(new File(mDir, "old1/" + name)),
+                    read(new File(mDir, "parallel1/" + name)));
+        }
+    }
+
+    private void extractLikeBefore(File outputDir) throws IOException {
+        ZipFile zipfile = new ZipFile(mArchive);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zipfile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                File outputFile = new File(outputDir, entry.getName());
+                outputFile.getParentFile().mkdirs();
+                BufferedInputStream inputStream =
+                        new BufferedInputStream(zipfile.getInputStream(entry));
+                BufferedOutputStream outputStream =
+                        new BufferedOutputStream(new FileOutputStream(outputFile));
+                int bufferLength;
+                byte[] buffer = new byte[1024];
+                while ((bufferLength = inputStream.read(buffer)) > 0) {
+                    outputStream.write(buffer, 0, bufferLength);
+                }
+                outputStream.close();
+                inputStream.close();
+            }
+        } finally {
+            zipfile.close();
+        }
+    }
+
+    private static void put(ZipOutputStream zos, String name, byte[] data) throws IOException {
+        zos.putNextEntry(new ZipEntry(name));
+        if (data != null) {
+            zos.write(data);
+        }
+        zos.closeEntry();
+    }
+
+    private static byte[] content(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Random letters from a small alphabet, deflates to about half of the size
+     */
+    private static byte[] compressible(int seed, int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(seed);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(16));
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = fis.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return data;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
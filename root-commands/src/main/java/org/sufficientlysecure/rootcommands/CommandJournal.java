@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes finished commands to Shell.Logs without slowing down the shells.
+ * <p/>
+ * log() only puts the command into a lock-free ring buffer, formatting and file I/O are done by
+ * one background thread which writes everything queued at once. If the buffer is full the entry
+ * is dropped instead of blocking the shell, the number of dropped entries is written with the
+ * next batch. The file is rotated to Shell.Logs + ".1" when it gets bigger than MAX_SIZE and the
+ * last TAIL_SIZE characters are kept in memory for showing them.
+ */
+public class CommandJournal {
+
+    // must be a power of two
+    private static final int CAPACITY = 256;
+    private static final long MAX_SIZE = 512 * 1024;
+    private static final int TAIL_SIZE = 64 * 1024;
+    // the writer drains the buffer at least this often, earlier if it gets half full
+    private static final long FLUSH_INTERVAL = 1000L * 1000L * 1000L;
+    private static final String TAG = "CommandJournal";
+
+    private static CommandJournal instance = null;
+
+    private final File file, rotated;
+    private final AtomicReferenceArray<SimpleCommand> ring =
+            new AtomicReferenceArray<SimpleCommand>(CAPACITY);
+    // next sequence to claim by a producer
+    private final AtomicLong head = new AtomicLong();
+    // next sequence to read by the writer, only written by the writer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final StringBuilder memoryTail = new StringBuilder();
+    private final Thread writer;
+    private final SharedPreferences preferences;
+    // kept here, SharedPreferences only hold a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (Shell.PREF_LOG.equals(key)) {
+                        enabled = prefs.getBoolean(Shell.PREF_LOG, false);
+                    }
+                }
+            };
+    private volatile boolean enabled;
+    private volatile boolean clear = false;
+    // number of passes the writer has completed, guarded by memoryTail
+    private long passes = 0;
+    private FileOutputStream out = null;
+
+    private CommandJournal(Context context) {
+        file = new File(context.getFilesDir(), Shell.Logs);
+        rotated = new File(context.getFilesDir(), Shell.Logs + ".1");
+        preferences = context.getSharedPreferences(Shell.PREF_NAME, Context.MODE_PRIVATE);
+        preferences.registerOnSharedPreferenceChangeListener(prefListener);
+        enabled = preferences.getBoolean(Shell.PREF_LOG, false);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, "Command Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static synchronized CommandJournal get(Context context) {
+        if (instance == null) {
+            instance = new CommandJournal(context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a finished command, never blocks. Does nothing if logging is disabled in the
+     * settings.
+     */
+    public void log(SimpleCommand command) {
+        if (!enabled) return;
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        ring.set((int) sequence & (CAPACITY - 1), command);
+        if (sequence - tail.get() == CAPACITY / 2) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waits (up to a second) until everything queued so far has been written, not to be called
+     * from the UI thread
+     */
+    public void sync() {
+        synchronized (memoryTail) {
+            // the current pass may have started before the caller queued its commands
+            long target = passes + 2;
+            long end = System.currentTimeMillis() + 1000;
+            LockSupport.unpark(writer);
+            try {
+                while (passes < target && System.currentTimeMillis() < end) {
+                    memoryTail.wait(100);
+                    LockSupport.unpark(writer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Never blocks, commands the writer hasn't picked up yet (up to FLUSH_INTERVAL old) are
+     * missing. Call sync() first on a background thread if they are needed.
+     *
+     * @return the last part of the log, including earlier runs of the App
+     */
+    public String getTail() {
+        synchronized (memoryTail) {
+            return memoryTail.toString();
+        }
+    }
+
+    /**
+     * Deletes the tail held in memory, the writer deletes the log files without the caller
+     * waiting for it
+     */
+    public void clear() {
+        synchronized (memoryTail) {
+            memoryTail.setLength(0);
+        }
+        clear = true;
+        LockSupport.unpark(writer);
+    }
+
+    private void writeEntries() {
+        readTail();
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            if (clear) {
+                clear = false;
+                closeFile();
+                file.delete();
+                rotated.delete();
+            }
+            batch.setLength(0);
+            int lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                batch.append("\n").append(lost).append(" commands not logged, journal was full\n");
+            }
+            long sequence = tail.get();
+            SimpleCommand command;
+            while ((command = ring.get((int) sequence & (CAPACITY - 1))) != null) {
+                ring.set((int) sequence & (CAPACITY - 1), null);
+                tail.lazySet(++sequence);
+                format(batch, command);
+            }
+            if (batch.length() > 0) {
+                write(batch.toString());
+            }
+            synchronized (memoryTail) {
+                passes++;
+                memoryTail.notifyAll();
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL);
+        }
+    }
+
+    private static void format(StringBuilder batch, SimpleCommand command) {
+        if (command.getExitCode() == 0) {
+            batch.append("\nCommand:\n").append(command.getCommand());
+        } else {
+            batch.append("\nFailed execute:\n").append(command.getCommand()).append("\n");
+        }
+        String output = command.getOutput();
+        if (!output.equals("")) {
+            batch.append("\n\nOutput:\n").append(output);
+        }
+    }
+
+    private void write(String entries) {
+        synchronized (memoryTail) {
+            memoryTail.append(entries);
+            if (memoryTail.length() > TAIL_SIZE) {
+                memoryTail.delete(0, memoryTail.length() - TAIL_SIZE);
+            }
+        }
+        try {
+            if (out != null && file.length() > MAX_SIZE) {
+                closeFile();
+                rotated.delete();
+                if (!file.renameTo(rotated)) {
+                    file.delete();
+                }
+            }
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            out.write(entries.getBytes());
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Writing command log failed", e);
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+            out = null;
+        }
+    }
+
+    // fills the tail with the end of the existing log, so it also shows earlier runs
+    private void readTail() {
+        try {
+            if (!file.exists()) return;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long start = Math.max(0, raf.length() - TAIL_SIZE);
+                byte[] data = new byte[(int) (raf.length() - start)];
+                raf.seek(start);
+                raf.readFully(data);
+                synchronized (memoryTail) {
+                    memoryTail.insert(0, new String(data));
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Reading command log failed", e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency statistics of all finished commands of all shells, grouped by Command.getKind().
+ * <p/>
+ * Times are kept in histograms with power of two millisecond buckets, so recording is cheap and
+ * the memory used doesn't grow with the number of commands. Percentiles are the upper bound of
+ * their bucket.
+ */
+public class CommandStats {
+
+    // bucket 0 is below 1 ms, bucket i is below 2^i ms, the last one takes everything above
+    private static final int BUCKETS = 22;
+    // further kinds are counted as OTHER, some commands start with a random path
+    private static final int MAX_KINDS = 64;
+    public static final String OTHER = "other";
+
+    private static final CommandStats instance = new CommandStats();
+
+    private final Map<String, Kind> kinds = new HashMap<String, Kind>();
+
+    public static CommandStats get() {
+        return instance;
+    }
+
+    /**
+     * Statistics of one kind of command
+     */
+    public static class Kind {
+        private final String name;
+        private final long[] execution = new long[BUCKETS];
+        private final long[] queue = new long[BUCKETS];
+        private long count = 0;
+        private long failed = 0;
+        private long total = 0;
+        private long max = 0;
+
+        private Kind(String name) {
+            this.name = name;
+        }
+
+        private synchronized void add(long queueTime, long executionTime, boolean failure) {
+            count++;
+            if (failure) failed++;
+            if (queueTime >= 0) queue[bucket(queueTime)]++;
+            if (executionTime >= 0) {
+                execution[bucket(executionTime)]++;
+                total += executionTime;
+                max = Math.max(max, executionTime);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return average execution time in milliseconds
+         */
+        public synchronized long getAverage() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percent for example 90 for the time 90% of the commands stayed below
+         * @return upper bound in milliseconds of the execution time
+         */
+        public synchronized long getExecutionPercentile(int percent) {
+            return percentile(execution, percent);
+        }
+
+        /**
+         * @return upper bound in milliseconds of the time waited for the shell
+         */
+        public synchronized long getQueuePercentile(int percent) {
+            return percentile(queue, percent);
+        }
+
+        private static long percentile(long[] histogram, int percent) {
+            long all = 0;
+            for (long n : histogram) all += n;
+            if (all == 0) return 0;
+            long needed = (all * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= needed) return 1L << i;
+            }
+            return 1L << (histogram.length - 1);
+        }
+    }
+
+    private static int bucket(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Called by Command when it finished, succeeded or not
+     *
+     * @param queueTime     milliseconds, -1 if unknown
+     * @param executionTime milliseconds, -1 if unknown
+     */
+    public void record(String name, long queueTime, long executionTime, boolean failed) {
+        Kind kind;
+        synchronized (kinds) {
+            kind = kinds.get(name);
+            if (kind == null) {
+                if (kinds.size() >= MAX_KINDS) {
+                    name = OTHER;
+                    kind = kinds.get(name);
+                }
+                if (kind == null) {
+                    kind = new Kind(name);
+                    kinds.put(name, kind);
+                }
+            }
+        }
+        kind.add(queueTime, executionTime, failed);
+    }
+
+    /**
+     * @return statistics of every kind of command executed so far, the most used first
+     */
+    public List<Kind> getKinds() {
+        ArrayList<Kind> list;
+        synchronized (kinds) {
+            list = new ArrayList<Kind>(kinds.values());
+        }
+        Collections.sort(list, new Comparator<Kind>() {
+            @Override
+            public int compare(Kind lhs, Kind rhs) {
+                long l = lhs.getCount(), r = rhs.getCount();
+                return l < r ? 1 : l > r ? -1 : lhs.name.compareTo(rhs.name);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return statistics of one kind, null if no such command has been executed
+     */
+    public Kind getKind(String name) {
+        synchronized (kinds) {
+            return kinds.get(name);
+        }
+    }
+
+    public void reset() {
+        synchronized (kinds) {
+            kinds.clear();
+        }
+    }
+
+    /**
+     * @return table of all kinds for reports, times in milliseconds
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-12s %7s %6s %7s %7s %7s %7s %8s %9s\n", "command",
+                "count", "failed", "avg", "p50", "p90", "p99", "max", "queue p90"));
+        for (Kind kind : getKinds()) {
+            sb.append(String.format(Locale.US, "%-12s %7d %6d %7d %7d %7d %7d %8d %9d\n",
+                    kind.getName(), kind.getCount(), kind.getFailed(), kind.getAverage(),
+                    kind.getExecutionPercentile(50), kind.getExecutionPercentile(90),
+                    kind.getExecutionPercentile(99), kind.getMax(),
+                    kind.getQueuePercentile(90)));
+        }
+        return sb.toString();
+    }
+}
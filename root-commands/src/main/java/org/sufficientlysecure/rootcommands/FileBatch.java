@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * File operations collected into one shell script, so a batch of copies and chmods costs a
+ * single round trip to the shell instead of one (or two with the fallbacks) per file.
+ * <p/>
+ * The operations are joined with &&, the script stops at the first one which fails and its exit
+ * code is the one of the failed operation.
+ */
+public class FileBatch {
+
+    // dd copies in 512 byte blocks by default, one read/write syscall pair per block
+    private static final int COPY_BLOCK_SIZE = 64 * 1024;
+
+    private final ArrayList<String> operations = new ArrayList<String>();
+
+    /**
+     * Copies with toolbox dd, falls back to toolbox cat
+     *
+     * @param destination file, not the directory it is copied into
+     */
+    public FileBatch copy(File source, File destination) {
+        String src = quote(source), dst = quote(destination);
+        return add("toolbox dd if=" + src + " of=" + dst + " bs=" + COPY_BLOCK_SIZE
+                + " || toolbox cat " + src + " > " + dst);
+    }
+
+    /**
+     * chmod with toolbox, falls back to busybox
+     *
+     * @param permissions String like 755
+     */
+    public FileBatch chmod(File file, String permissions) {
+        String f = quote(file);
+        return add("toolbox chmod " + permissions + " " + f
+                + " || busybox chmod " + permissions + " " + f);
+    }
+
+    /**
+     * @param command any shell command, grouped so || and ; inside it don't affect the others
+     */
+    public FileBatch add(String command) {
+        operations.add("{ " + command + "; }");
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public String getScript() {
+        StringBuilder script = new StringBuilder();
+        for (String operation : operations) {
+            if (script.length() > 0) script.append(" && ");
+            script.append(operation);
+        }
+        return script.toString();
+    }
+
+    private static String quote(File file) {
+        return Toolbox.quote(file.getAbsolutePath());
+    }
+
+    @Override
+    public String toString() {
+        return getScript();
+    }
+}
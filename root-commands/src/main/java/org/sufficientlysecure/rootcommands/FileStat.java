@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+/**
+ * Metadata of one file as returned by Toolbox.getFileStats(). Parsed from stat -c output, or
+ * from ls -ld if the device has neither toybox nor busybox stat, in which case uid, gid and size
+ * may be unknown.
+ */
+public class FileStat {
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_FILE = 1;
+    public static final int TYPE_DIRECTORY = 2;
+    public static final int TYPE_SYMLINK = 3;
+    public static final int TYPE_CHARACTER_DEVICE = 4;
+    public static final int TYPE_BLOCK_DEVICE = 5;
+    public static final int TYPE_FIFO = 6;
+    public static final int TYPE_SOCKET = 7;
+
+    // file type bits of st_mode
+    private static final int S_IFMT = 0170000;
+
+    private final String path;
+    private final int type;
+    // permission bits including setuid, setgid and sticky
+    private final int mode;
+    private final int uid, gid;
+    private final String owner, group;
+    private final long size;
+    String linkTarget = null;
+
+    FileStat(String path, int type, int mode, int uid, int gid, String owner, String group,
+             long size) {
+        this.path = path;
+        this.type = type;
+        this.mode = mode;
+        this.uid = uid;
+        this.gid = gid;
+        this.owner = owner;
+        this.group = group;
+        this.size = size;
+    }
+
+    /**
+     * Parses a line printed with the format Toolbox.STAT_FORMAT, without its prefix:
+     * raw mode in hex|uid|gid|owner|group|size|path
+     *
+     * @return null if the line can't be parsed
+     */
+    static FileStat parseStat(String line) {
+        String[] fields = line.split("\\|", 7);
+        if (fields.length < 7) return null;
+        try {
+            int rawMode = Integer.parseInt(fields[0], 16);
+            return new FileStat(fields[6], getType(rawMode & S_IFMT), rawMode & 07777,
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), fields[3],
+                    fields[4], Long.parseLong(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a line of toolbox or busybox ls -ld, for example:
+     *
+     * <pre>
+     * toolbox:
+     *     lrwxrwxrwx root root            15 Aug 13 12:14 stdin -> /proc/self/fd/0
+     *     -rwxr-xr-x root shell       12345 2015-01-01 12:00 busybox
+     * busybox:
+     *     -rwxr-xr-x    1 root     shell        12345 Jan  1 12:00 busybox
+     * </pre>
+     *
+     * @param path path ls was called with, ls prints the name in different forms
+     * @return null if the line can't be parsed
+     */
+    static FileStat parseLs(String path, String line) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length < 3 || fields[0].length() < 10) return null;
+        String permissions = fields[0];
+        // busybox prints the link count after the permissions, toolbox doesn't
+        int owner = fields[1].matches("[0-9]+") && fields.length > 3 ? 2 : 1;
+        long size = -1;
+        if (permissions.charAt(0) == '-' && fields.length > owner + 2) {
+            try {
+                size = Long.parseLong(fields[owner + 2]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        FileStat stat = new FileStat(path, getType(permissions.charAt(0)),
+                parsePermissions(permissions), -1, -1, fields[owner], fields[owner + 1], size);
+        int arrow = line.indexOf(" -> ");
+        if (stat.type == TYPE_SYMLINK && arrow >= 0) {
+            stat.linkTarget = line.substring(arrow + 4).trim();
+        }
+        return stat;
+    }
+
+    private static int getType(int format) {
+        switch (format) {
+            case 0100000:
+                return TYPE_FILE;
+            case 0040000:
+                return TYPE_DIRECTORY;
+            case 0120000:
+                return TYPE_SYMLINK;
+            case 0020000:
+                return TYPE_CHARACTER_DEVICE;
+            case 0060000:
+                return TYPE_BLOCK_DEVICE;
+            case 0010000:
+                return TYPE_FIFO;
+            case 0140000:
+                return TYPE_SOCKET;
+            default:
+                return TYPE_UNKNOWN;
+        }
+    }
+
+    private static int getType(char type) {
+        switch (type) {
+            case '-':
+                return TYPE_FILE;
+            case 'd':
+                return TYPE_DIRECTORY;
+            case 'l':
+                return TYPE_SYMLINK;
+            case 'c':
+                return TYPE_CHARACTER_DEVICE;
+            case 'b':
+                return TYPE_BLOCK_DEVICE;
+            case 'p':
+                return TYPE_FIFO;
+            case 's':
+                return TYPE_SOCKET;
+            default:
+                return TYPE_UNKNOWN;
+        }
+    }
+
+    /**
+     * Converts a permission string like -rwsr-xr-x to its numerical value (04755)
+     */
+    private static int parsePermissions(String permissions) {
+        int mode = 0;
+        // setuid, setgid and sticky are shown in the x position of owner, group and world
+        for (int group = 0; group < 3; group++) {
+            int shift = 6 - group * 3;
+            char r = permissions.charAt(1 + group * 3);
+            char w = permissions.charAt(2 + group * 3);
+            char x = permissions.charAt(3 + group * 3);
+            if (r == 'r') mode |= 4 << shift;
+            if (w == 'w') mode |= 2 << shift;
+            if (x == 'x' || x == 's' || x == 't') mode |= 1 << shift;
+            if (x == 's' || x == 'S' || x == 't' || x == 'T') mode |= 01000 << (2 - group);
+        }
+        return mode;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return one of the TYPE_ constants
+     */
+    public int getType() {
+        return type;
+    }
+
+    public boolean isDirectory() {
+        return type == TYPE_DIRECTORY;
+    }
+
+    public boolean isSymlink() {
+        return type == TYPE_SYMLINK;
+    }
+
+    /**
+     * @return permission bits, for example 0755
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return permissions as octal String like chmod takes it, for example 755 or 4755
+     */
+    public String getPermissions() {
+        String octal = Integer.toOctalString(mode);
+        while (octal.length() < 3) {
+            octal = "0" + octal;
+        }
+        return octal;
+    }
+
+    /**
+     * @return numerical owner, -1 if unknown
+     */
+    public int getUid() {
+        return uid;
+    }
+
+    /**
+     * @return numerical group, -1 if unknown
+     */
+    public int getGid() {
+        return gid;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * @return size in bytes, -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return target as stored in the link (may be relative), null if the file is no symlink
+     */
+    public String getLinkTarget() {
+        return linkTarget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s:%s %d%s", getPermissions(), path, owner, group, size,
+                linkTarget != null ? " -> " + linkTarget : "");
+    }
+}
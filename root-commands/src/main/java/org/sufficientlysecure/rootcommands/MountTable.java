@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cached copy of /proc/mounts, read with one command on an existing root shell. Mount points
+ * are kept in a trie of path components, so the mount a file is on is found by walking its path
+ * once (longest prefix), without reading the table again.
+ * <p/>
+ * The table is read when it is needed and dropped when a shell finished a mount or umount
+ * command (see Shell), other changes of the mounts are not noticed until invalidate().
+ */
+public class MountTable {
+
+    private static final MountTable instance = new MountTable();
+
+    // null if the table has to be read again
+    private Table table = null;
+    // counts invalidations, a table read before the last one is not stored
+    private int generation = 0;
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        Mount mount = null;
+    }
+
+    // never changed after reading
+    private static class Table {
+        final Node root = new Node();
+        final ArrayList<Mount> mounts = new ArrayList<Mount>();
+    }
+
+    public static MountTable get() {
+        return instance;
+    }
+
+    /**
+     * Drops the cached table, the next lookup reads /proc/mounts again
+     */
+    public synchronized void invalidate() {
+        generation++;
+        table = null;
+    }
+
+    /**
+     * @return all mounts in the order of /proc/mounts
+     */
+    public List<Mount> getMounts(Shell shell) throws FailedExecuteCommand {
+        return new ArrayList<Mount>(load(shell).mounts);
+    }
+
+    /**
+     * @param path file or directory, doesn't have to exist
+     * @return mount the path is on (the longest mount point which contains it), null if the
+     * table has no "/" mount
+     */
+    public Mount find(Shell shell, String path) throws FailedExecuteCommand {
+        ArrayList<String> names = new ArrayList<String>();
+        for (String name : path.split("/")) {
+            if (name.equals("..")) {
+                if (!names.isEmpty()) names.remove(names.size() - 1);
+            } else if (name.length() > 0 && !name.equals(".")) {
+                names.add(name);
+            }
+        }
+        Node node = load(shell).root;
+        Mount found = node.mount;
+        for (String name : names) {
+            node = node.children.get(name);
+            if (node == null) break;
+            if (node.mount != null) found = node.mount;
+        }
+        return found;
+    }
+
+    private Table load(Shell shell) throws FailedExecuteCommand {
+        int loading;
+        synchronized (this) {
+            if (table != null) return table;
+            loading = generation;
+        }
+        // read directly, copying it to a file readable by the App (like before) needs a new su
+        // process and is not needed for a shell
+        String output = shell.execCommand("cat /proc/mounts");
+        Table read = new Table();
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4) continue;
+            Mount mount = new Mount(new File(unescape(fields[0])), new File(unescape(fields[1])),
+                    fields[2], fields[3]);
+            read.mounts.add(mount);
+            Node node = read.root;
+            for (String name : mount.getMountPoint().getPath().split("/")) {
+                if (name.length() == 0) continue;
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            // a later mount on the same point hides the earlier one
+            node.mount = mount;
+        }
+        Log.d(RootCommands.TAG, "Read " + read.mounts.size() + " mounts");
+        synchronized (this) {
+            // if a mount command finished while reading, the table is only used for this lookup
+            if (generation == loading) {
+                table = read;
+            }
+        }
+        return read;
+    }
+
+    // /proc/mounts writes spaces and some other characters as octal escapes like \040
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) return field;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && isOctal(field, i + 1)) {
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                i += 3;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isOctal(String s, int start) {
+        if (start + 3 > s.length()) return false;
+        for (int i = start; i < start + 3; i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '7') return false;
+        }
+        return true;
+    }
+}
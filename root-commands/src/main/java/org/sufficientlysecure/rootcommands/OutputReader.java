@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the output of a shell into lines without creating a String per line. The current line
+ * stays in a reused byte array until the next call of readLine().
+ */
+class OutputReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0, end = 0;
+    private byte[] line = new byte[256];
+    private int length = 0;
+
+    OutputReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line, line ends (\n and \r\n) are removed
+     *
+     * @return false on EOF
+     * @throws IOException
+     */
+    boolean readLine() throws IOException {
+        length = 0;
+        while (true) {
+            if (position == end) {
+                int read = in.read(buffer);
+                if (read <= 0) {
+                    // last line without line end
+                    return length > 0;
+                }
+                position = 0;
+                end = read;
+            }
+            int start = position;
+            while (position < end && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position - start);
+            if (position < end) {
+                // skip \n
+                position++;
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void append(int offset, int count) {
+        if (length + count > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, length + count)];
+            System.arraycopy(line, 0, bigger, 0, length);
+            line = bigger;
+        }
+        System.arraycopy(buffer, offset, line, length, count);
+        length += count;
+    }
+
+    byte[] getLine() {
+        return line;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return position of pattern in the current line or -1
+     */
+    int indexOf(byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (line[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the number after the spaces following position
+     *
+     * @return position after the number
+     * @throws NumberFormatException if there is no number
+     */
+    int parseInt(int position, int[] result) {
+        while (position < length && line[position] == ' ') position++;
+        boolean negative = position < length && line[position] == '-';
+        if (negative) position++;
+        int start = position;
+        int value = 0;
+        while (position < length && line[position] >= '0' && line[position] <= '9') {
+            value = value * 10 + (line[position] - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new NumberFormatException("No number in shell output at " + start);
+        }
+        result[0] = negative ? -value : value;
+        return position;
+    }
+
+    boolean equalsAscii(String text) {
+        if (text.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (line[i] != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new String(line, 0, length);
+    }
+}
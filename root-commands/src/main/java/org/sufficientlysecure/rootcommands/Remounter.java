@@ -18,12 +18,9 @@
 package org.sufficientlysecure.rootcommands;
 
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
 import org.sufficientlysecure.rootcommands.util.Log;
 
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.LineNumberReader;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -43,39 +40,12 @@ class Remounter {
      * <p/>
      * These will provide you with any information you need to work with the mount points.
      *
+     * @param shell root shell which reads /proc/mounts if it isn't cached, see MountTable
      * @return <code>ArrayList<Mount></code> an ArrayList of the class Mount.
      * @throws Exception if we cannot return the mount points.
      */
-    protected static ArrayList<Mount> getMounts() throws Exception {
-
-        final File tempFile = new File("/data/local/RootToolsMounts");
-
-        // copy /proc/mounts to tempfile. Directly reading it does not work on 4.3
-        Shell shell = Shell.startRootShell();
-        File mounts = new File("/proc/mounts");
-        Toolbox tb = new Toolbox(shell);
-        tb.copyFile(mounts, tempFile, false, false);
-        tb.setFilePermissions(tempFile, "777");
-        shell.close();
-
-        LineNumberReader lnr = null;
-        lnr = new LineNumberReader(new FileReader(tempFile));
-        String line;
-        ArrayList<Mount> mountsList = new ArrayList<Mount>();
-        while ((line = lnr.readLine()) != null) {
-
-            Log.d(RootCommands.TAG, line);
-
-            String[] fields = line.split(" ");
-            mountsList.add(new Mount(new File(fields[0]), // device
-                    new File(fields[1]), // mountPoint
-                    fields[2], // fstype
-                    fields[3] // flags
-            ));
-        }
-        lnr.close();
-
-        return mountsList;
+    protected static ArrayList<Mount> getMounts(Shell shell) throws Exception {
+        return new ArrayList<Mount>(MountTable.get().getMounts(shell));
     }
 
     /**
@@ -84,8 +54,8 @@ class Remounter {
      * <p/>
      * For example, passing in the following string:
      * "/system/bin/some/directory/that/really/would/never/exist" will result in /system ultimately
-     * being remounted. However, keep in mind that the longer the path you supply, the more work
-     * this has to do, and the slower it will run.
+     * being remounted. The mount is looked up in the cached MountTable, only the remount itself
+     * and reading the table after it run on the shell.
      *
      * @param file      file path
      * @param mountType mount type: pass in RO (Read only) or RW (Read Write)
@@ -93,94 +63,54 @@ class Remounter {
      * remounted as specified.
      */
     protected boolean remount(String file, String mountType) {
-
-        // if the path has a trailing slash get rid of it.
-        if (file.endsWith("/") && !file.equals("/")) {
-            file = file.substring(0, file.lastIndexOf("/"));
+        String type = mountType.toLowerCase(Locale.US);
+        MountTable table = MountTable.get();
+        Mount mountPoint;
+        try {
+            mountPoint = table.find(shell, file);
+        } catch (FailedExecuteCommand e) {
+            Log.e(RootCommands.TAG, "Exception", e);
+            return false;
         }
-        // Make sure that what we are trying to remount is in the mount list.
-        boolean foundMount = false;
-        while (!foundMount) {
-            try {
-                for (Mount mount : getMounts()) {
-                    Log.d(RootCommands.TAG, mount.getMountPoint().toString());
-
-                    if (file.equals(mount.getMountPoint().toString())) {
-                        foundMount = true;
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(RootCommands.TAG, "Exception", e);
-                return false;
-            }
-            if (!foundMount) {
-                try {
-                    file = (new File(file).getParent());
-                } catch (Exception e) {
-                    Log.e(RootCommands.TAG, "Exception", e);
-                    return false;
-                }
-            }
+        if (mountPoint == null) {
+            Log.e(RootCommands.TAG, "No mount point found for " + file);
+            return false;
         }
-        Mount mountPoint = findMountPointRecursive(file);
 
         Log.d(RootCommands.TAG, "Remounting " + mountPoint.getMountPoint().getAbsolutePath()
-                + " as " + mountType.toLowerCase(Locale.US));
-        final boolean isMountMode = mountPoint.getFlags().contains(mountType.toLowerCase(Locale.US));
+                + " as " + type);
+        final boolean isMountMode = mountPoint.getFlags().contains(type);
 
         if (!isMountMode) {
-            // grab an instance of the internal class
+            String device = mountPoint.getDevice().getAbsolutePath();
+            String path = mountPoint.getMountPoint().getAbsolutePath();
             try {
-                SimpleCommand command = new SimpleCommand("busybox mount -o remount,"
-                        + mountType.toLowerCase(Locale.US) + " " + mountPoint.getDevice().getAbsolutePath()
-                        + " " + mountPoint.getMountPoint().getAbsolutePath(),
-                        "toolbox mount -o remount," + mountType.toLowerCase(Locale.US) + " "
-                                + mountPoint.getDevice().getAbsolutePath() + " "
-                                + mountPoint.getMountPoint().getAbsolutePath(), "mount -o remount,"
-                        + mountType.toLowerCase(Locale.US) + " "
-                        + mountPoint.getDevice().getAbsolutePath() + " "
-                        + mountPoint.getMountPoint().getAbsolutePath(),
-                        "/system/bin/toolbox mount -o remount," + mountType.toLowerCase(Locale.US) + " "
-                                + mountPoint.getDevice().getAbsolutePath() + " "
-                                + mountPoint.getMountPoint().getAbsolutePath()
-                );
+                SimpleCommand command = new SimpleCommand(
+                        "busybox mount -o remount," + type + " " + device + " " + path,
+                        "toolbox mount -o remount," + type + " " + device + " " + path,
+                        "mount -o remount," + type + " " + device + " " + path,
+                        "/system/bin/toolbox mount -o remount," + type + " " + device + " " + path);
 
-                // execute on shell
+                // execute on shell, the shell drops the cached table when a mount command finished
                 shell.add(command).waitForFinish();
 
             } catch (Exception e) {
             }
+            // also if the command failed, the mount may have been changed anyway
+            table.invalidate();
 
-            mountPoint = findMountPointRecursive(file);
-        }
-
-        Log.d(RootCommands.TAG, mountPoint.getFlags() + " AND " + mountType.toLowerCase(Locale.US));
-        if (mountPoint.getFlags().contains(mountType.toLowerCase(Locale.US))) {
-            Log.d(RootCommands.TAG, mountPoint.getFlags().toString());
-            return true;
-        } else {
-            Log.d(RootCommands.TAG, mountPoint.getFlags().toString());
-            return false;
-        }
-    }
-
-    private Mount findMountPointRecursive(String file) {
-        try {
-            ArrayList<Mount> mounts = getMounts();
-            for (File path = new File(file); path != null; ) {
-                for (Mount mount : mounts) {
-                    if (mount.getMountPoint().equals(path)) {
-                        return mount;
-                    }
-                }
+            try {
+                mountPoint = table.find(shell, path);
+            } catch (FailedExecuteCommand e) {
+                Log.e(RootCommands.TAG, "Exception", e);
+                return false;
+            }
+            if (mountPoint == null) {
+                return false;
             }
-            return null;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (Exception e) {
-            Log.e(RootCommands.TAG, "Exception", e);
         }
-        return null;
+
+        Log.d(RootCommands.TAG, mountPoint.getFlags() + " AND " + type);
+        return mountPoint.getFlags().contains(type);
     }
 }
@@ -20,21 +20,29 @@ package org.sufficientlysecure.rootcommands;
 import android.content.Context;
 
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
 import org.sufficientlysecure.rootcommands.util.Log;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
 import org.sufficientlysecure.rootcommands.util.Utils;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Shell implements Closeable {
     public static final String PREF_NAME = "shell";
@@ -43,12 +51,70 @@ public class Shell implements Closeable {
     private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
     private static final String token = "F*D^W@#FGF";
     private static final String TAG = "Shell";
+    // one thread for the timeouts of all commands of all shells
+    private static final ScheduledExecutorService TIMEOUTS = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Command Timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // time a killed command gets to finish before its shell is closed
+    private static final int KILL_GRACE = 5000;
+    // exported with ":<id>:" before every command, so the processes a command starts carry its
+    // id in /proc/<pid>/environ
+    private static final String COMMAND_ID = "ROOTCOMMANDS_ID";
+    // kills all descendants of the shell process %1$d, that is the command it is running, except
+    // processes started by another command than %2$d. The command may have finished before the
+    // script runs, this keeps it from killing the next one. Forked subshells show the environment
+    // of the shell and are killed. Only uses shell builtins, cat and /proc, toolbox has no grep
+    // or pkill.
+    private static final String KILL_CHILDREN = "t=' %1$d '; n=1; while [ $n = 1 ]; do n=0; "
+            + "for d in /proc/[0-9]*; do p=${d#/proc/}; case \"$t\" in *\" $p \"*) continue;; esac; "
+            + "v=; while read -r k v; do [ \"$k\" = PPid: ] && break; v=; done 2>/dev/null < $d/status; "
+            + "case \"$t\" in *\" $v \"*) t=\"$t$p \"; n=1;; esac; done; done; "
+            + "set -- $t; shift; k=; for p; do case \"$(cat /proc/$p/environ 2>/dev/null)\" in "
+            + "*" + COMMAND_ID + "=:%2$d:*) k=\"$k $p\";; *" + COMMAND_ID + "=:*) ;; "
+            + "*) k=\"$k $p\";; esac; done; [ -z \"$k\" ] || kill -9 $k";
+    // shells used to kill timed out commands of other shells, by shell program, guarded by
+    // itself. Started with the first kill and kept, so later timeouts don't pay another su start.
+    private static final Map<String, Shell> killers = new HashMap<String, Shell>();
+    private final String shellPath;
+    // environment the shell has been started with, the killer for it gets the same
+    private final ArrayList<String> customEnv;
+    // process id of the shell, 0 if unknown
+    private int pid = 0;
     private final Process shellProcess;
-    private final BufferedReader stdOutErr;
+    private final OutputReader stdOutErr;
+    private static final byte[] tokenBytes = token.getBytes();
     private final DataOutputStream outputStream;
-    private final List<Command> commands = new ArrayList<Command>();
+    // commands waiting to be written, guarded by itself
+    private final LinkedList<Command> commands = new LinkedList<Command>();
+    // written commands waiting for their output, in order of execution, guarded by commands.
+    // Finished commands are removed, so the shell keeps no references to them.
+    private final LinkedList<Command> running = new LinkedList<Command>();
+    // sequence number of the next added command, written with the token to match the output
+    private int nextId = 0;
     private boolean close = false;
+    // set when the shell process ended, by exit or because it has been killed
+    private volatile boolean dead = false;
     private Context mContext = null;
+    // null if the shell has been started without a Context
+    private final CommandJournal journal;
+    private final CommandFuture.Callback<SimpleCommand> logCallback =
+            new CommandFuture.Callback<SimpleCommand>() {
+                @Override
+                public void onFinished(SimpleCommand command) {
+                    logCommand(command);
+                }
+
+                @Override
+                public void onFailed(SimpleCommand command, Exception e) {
+                    logCommand(command);
+                }
+            };
     private Runnable inputRunnable = new Runnable() {
         public void run() {
             try {
@@ -74,32 +140,47 @@ public class Shell implements Closeable {
             throws IOException {
 
         this.mContext = mContext;
+        this.shellPath = shell;
+        this.customEnv = customEnv != null ? new ArrayList<String>(customEnv) : null;
+        journal = mContext != null ? CommandJournal.get(mContext) : null;
         Log.d(RootCommands.TAG, "Starting shell: " + shell);
+        long start = System.nanoTime();
 
         // start shell process!
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
 
         // StdErr is redirected to StdOut, defined in Command.getCommand()
-        stdOutErr = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
+        stdOutErr = new OutputReader(shellProcess.getInputStream());
         outputStream = new DataOutputStream(shellProcess.getOutputStream());
 
-        outputStream.write("echo Started\n".getBytes());
+        outputStream.write("echo Started $$\n".getBytes());
         outputStream.flush();
 
+        byte[] started = "Started ".getBytes();
         while (true) {
-            String line = stdOutErr.readLine();
-            if (line == null)
+            if (!stdOutErr.readLine())
                 throw new RootAccessDeniedException(
                         "stdout line is null! Access was denied or this executeable is not a shell!");
-            if ("".equals(line))
+            if (stdOutErr.getLength() == 0)
                 continue;
-            if ("Started".equals(line))
+            if (stdOutErr.indexOf(started) == 0) {
+                int[] number = new int[1];
+                try {
+                    stdOutErr.parseInt(started.length, number);
+                    pid = number[0];
+                } catch (NumberFormatException e) {
+                    // timed out commands close the shell instead of being killed
+                    Log.e(RootCommands.TAG, "Unknown shell pid: " + stdOutErr);
+                }
                 break;
+            }
 
             destroyShellProcess();
-            throw new IOException("Unable to start shell, unexpected output \"" + line + "\"");
+            throw new IOException("Unable to start shell, unexpected output \"" + stdOutErr + "\"");
         }
 
+        Log.d(RootCommands.TAG, "Shell " + pid + " started in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
         new Thread(inputRunnable, "Shell Input").start();
         new Thread(outputRunnable, "Shell Output").start();
     }
@@ -217,28 +298,45 @@ public class Shell implements Closeable {
 
     /**
      * Writes queued commands one after another into the opened shell. After an execution a token is
-     * written to seperate command output on read
+     * written to seperate command output on read. All commands queued at the same time are written
+     * with a single write and flush.
      *
      * @throws IOException
      */
     private void writeCommands() throws IOException {
         try {
-            int commandIndex = 0;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ArrayList<Command> batch = new ArrayList<Command>();
             while (true) {
                 DataOutputStream out;
                 synchronized (commands) {
-                    while (!close && commandIndex >= commands.size()) {
+                    while (!close && commands.isEmpty()) {
                         commands.wait();
                     }
                     out = this.outputStream;
+                    for (Command next : commands) {
+                        next.writtenToShell();
+                    }
+                    if (running.isEmpty() && !commands.isEmpty()) {
+                        commands.peek().started(System.nanoTime());
+                    }
+                    batch.addAll(commands);
+                    commands.clear();
+                    // registered before writing, the output may arrive immediately
+                    running.addAll(batch);
                 }
-                if (commandIndex < commands.size()) {
-                    Command next = commands.get(commandIndex);
-                    next.writeCommand(out);
-                    String line = "\necho " + token + " " + commandIndex + " $?\n";
-                    out.write(line.getBytes());
+                if (!batch.isEmpty()) {
+                    buffer.reset();
+                    for (Command next : batch) {
+                        buffer.write(("export " + COMMAND_ID + "=:" + next.getId() + ":\n")
+                                .getBytes());
+                        next.writeCommand(buffer);
+                        String line = "\necho " + token + " " + next.getId() + " $?\n";
+                        buffer.write(line.getBytes());
+                    }
+                    batch.clear();
+                    buffer.writeTo(out);
                     out.flush();
-                    commandIndex++;
                 } else if (close) {
                     out.write("\nexit 0\n".getBytes());
                     out.flush();
@@ -253,66 +351,80 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Reads output line by line, seperated by token written after every command
+     * Reads output line by line, seperated by token written after every command. Lines are parsed
+     * as bytes, only commands in OUTPUT_LINES mode get them as Strings.
      *
      * @throws IOException
      * @throws InterruptedException
      */
     private void readOutput() throws IOException, InterruptedException {
         Command command = null;
+        int[] number = new int[1];
 
-        // index of current command
-        int commandIndex = 0;
         while (true) {
-            String lineStdOut = stdOutErr.readLine();
-
             // terminate on EOF
-            if (lineStdOut == null)
+            if (!stdOutErr.readLine())
                 break;
 
             if (command == null) {
+                synchronized (commands) {
+                    command = running.peek();
+                }
 
                 // break on close after last command
-                if (commandIndex >= commands.size()) {
+                if (command == null) {
                     if (close)
                         break;
                     continue;
                 }
-
-                // get current command
-                command = commands.get(commandIndex);
             }
 
-            int pos = lineStdOut.indexOf(token);
+            byte[] line = stdOutErr.getLine();
+            int pos = stdOutErr.indexOf(tokenBytes);
             if (pos > 0) {
-                command.processOutput(lineStdOut.substring(0, pos));
+                command.processOutput(line, 0, pos);
             }
             if (pos >= 0) {
-                lineStdOut = lineStdOut.substring(pos);
-                String fields[] = lineStdOut.split(" ");
-                int id = Integer.parseInt(fields[1]);
-                if (id == commandIndex) {
-                    command.setExitCode(Integer.parseInt(fields[2]));
+                int next = stdOutErr.parseInt(pos + tokenBytes.length, number);
+                if (number[0] == command.getId()) {
+                    stdOutErr.parseInt(next, number);
+                    // release the command before waking up its waiting thread
+                    synchronized (commands) {
+                        running.poll();
+                        // the next command written already starts now
+                        Command following = running.peek();
+                        if (following != null) {
+                            following.started(System.nanoTime());
+                        }
+                    }
+                    command.setExitCode(number[0]);
+                    if (changesMounts(command)) {
+                        MountTable.get().invalidate();
+                    }
 
                     // go to next command
-                    commandIndex++;
                     command = null;
                     continue;
                 }
+                command.processOutput(line, pos, stdOutErr.getLength() - pos);
+                continue;
             }
-            command.processOutput(lineStdOut);
+            command.processOutput(line, 0, stdOutErr.getLength());
         }
         Log.d(RootCommands.TAG, "Read all output");
+        dead = true;
         shellProcess.waitFor();
         destroyShellProcess();
 
-        while (commandIndex < commands.size()) {
-            if (command == null) {
-                command = commands.get(commandIndex);
-            }
-            command.terminated("Unexpected Termination!");
-            commandIndex++;
-            command = null;
+        ArrayList<Command> unfinished;
+        synchronized (commands) {
+            unfinished = new ArrayList<Command>(running);
+            unfinished.addAll(commands);
+            running.clear();
+            commands.clear();
+        }
+        for (Command left : unfinished) {
+            left.terminated("Unexpected Termination!");
         }
     }
 
@@ -324,15 +436,237 @@ public class Shell implements Closeable {
      * @throws IOException
      */
     public Command add(Command command) throws IOException, FailedExecuteCommand {
+        ArrayList<Command> single = new ArrayList<Command>(1);
+        single.add(command);
+        addAll(single);
+        return command;
+    }
+
+    /**
+     * Add commands to shell queue at once, they are written to the shell together
+     *
+     * @param batch
+     * @throws IOException
+     */
+    public void addAll(List<? extends Command> batch) throws IOException, FailedExecuteCommand {
         if (close)
             throw new IOException("Unable to add commands to a closed shell");
         synchronized (commands) {
-            commands.add(command);
-            // set shell on the command object, to know where the command is running on
-            command.addedToShell(this, (commands.size() - 1));
+            for (Command command : batch) {
+                // set shell on the command object, to know where the command is running on
+                command.addedToShell(this, nextId);
+                // ids only have to be unique among the queued commands, so overflowing is fine
+                nextId = nextId == Integer.MAX_VALUE ? 0 : nextId + 1;
+            }
+            commands.addAll(batch);
             commands.notifyAll();
         }
-        return command;
+        for (Command command : batch) {
+            if (command.getTimeout() > 0) {
+                scheduleTimeout(command, command.getTimeout());
+            }
+        }
+    }
+
+    private static boolean changesMounts(Command command) {
+        String kind = command.getKind();
+        return kind.equals("mount") || kind.equals("umount");
+    }
+
+    private void scheduleTimeout(Command command, long delay) {
+        // timeouts stay queued until they are due (no setRemoveOnCancelPolicy before API 21), so
+        // they must not keep finished commands and their output alive
+        final WeakReference<Command> pending = new WeakReference<Command>(command);
+        TIMEOUTS.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Command command = pending.get();
+                if (command != null) {
+                    checkTimeout(command);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the timeout thread. The timeout counts from the start of the command, a command
+     * waiting behind a slow one is checked again later.
+     */
+    private void checkTimeout(Command command) {
+        long left;
+        synchronized (commands) {
+            if (command.isFinished()) return;
+            if (running.peek() != command || command.getStartTime() == 0) {
+                // cancelled before it has been written
+                if (!commands.contains(command) && !running.contains(command)) return;
+                left = command.getTimeout();
+            } else {
+                left = command.getTimeout()
+                        - (System.nanoTime() - command.getStartTime()) / 1000000;
+            }
+        }
+        if (left > 0) {
+            scheduleTimeout(command, left);
+            return;
+        }
+        if (!command.timedOut()) return;
+        Log.d(RootCommands.TAG, "Command " + command.getId() + " timed out");
+        if (command.getTimeoutPolicy() == Command.TIMEOUT_CLOSE_SHELL || !killRunning(command)) {
+            command.terminate(Command.TIMEOUT);
+        }
+    }
+
+    /**
+     * Kills the processes of the running command from another shell, this shell finishes the
+     * command with the exit code of the killed process and goes on with the next one. If the
+     * command is still there after KILL_GRACE the shell is closed.
+     *
+     * @return false if the command could not be killed
+     */
+    private boolean killRunning(final Command command) {
+        if (pid <= 0) return false;
+        synchronized (commands) {
+            // finished already, the kill script checks this again
+            if (running.peek() != command) return true;
+        }
+        try {
+            SimpleCommand kill = new SimpleCommand(killScript(pid, command.getId()));
+            kill.setTimeoutPolicy(Command.TIMEOUT_CLOSE_SHELL);
+            queueKill(shellPath, customEnv, kill);
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "Unable to kill command " + command.getId(), e);
+            return false;
+        } catch (FailedExecuteCommand e) {
+            Log.e(RootCommands.TAG, "Unable to kill command " + command.getId(), e);
+            return false;
+        }
+        TIMEOUTS.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!command.isFinished()) {
+                    command.terminate(Command.TIMEOUT);
+                }
+            }
+        }, KILL_GRACE, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    static String killScript(int shellPid, int commandId) {
+        return String.format(Locale.US, KILL_CHILDREN, shellPid, commandId);
+    }
+
+    /**
+     * Runs the kill script on the killer shell for shellPath, which is started with customEnv on
+     * the first kill and replaced if it died
+     */
+    private static void queueKill(String shellPath, ArrayList<String> customEnv,
+                                  SimpleCommand kill) throws IOException, FailedExecuteCommand {
+        synchronized (killers) {
+            Shell killer = killers.get(shellPath);
+            if (killer == null || !killer.isAlive()) {
+                if (killer != null) {
+                    killer.close();
+                }
+                killer = new Shell(null, shellPath, customEnv, null);
+                killers.put(shellPath, killer);
+            }
+            killer.add(kill);
+        }
+    }
+
+    /**
+     * Queues a command without waiting for it. The timeout of the command is handled by a shared
+     * timer, no thread is blocked until CommandFuture.get() is called.
+     *
+     * @param command
+     * @return handle to wait for, cancel or get notified about the command
+     */
+    public <T extends Command> CommandFuture<T> submit(T command) throws IOException,
+            FailedExecuteCommand {
+        CommandFuture<T> future = newFuture(command);
+        add(command);
+        return future;
+    }
+
+    private <T extends Command> CommandFuture<T> newFuture(T command) {
+        return new CommandFuture<T>(command, new CommandFuture.Canceller() {
+            @Override
+            public boolean cancel(Command command) {
+                synchronized (commands) {
+                    // only possible as long as the command hasn't been written
+                    return commands.remove(command);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues several shell commands at once, they are written to the shell with one write and
+     * flush. Every command still has its own output and exit code, a failing command doesn't
+     * stop the following ones.
+     *
+     * @param Commands for example "echo 1", "echo 2"
+     * @return one future per command, in the same order
+     */
+    public List<CommandFuture<SimpleCommand>> submitBatch(String... Commands) throws IOException,
+            FailedExecuteCommand {
+        ArrayList<SimpleCommand> batch = new ArrayList<SimpleCommand>(Commands.length);
+        ArrayList<CommandFuture<SimpleCommand>> futures =
+                new ArrayList<CommandFuture<SimpleCommand>>(Commands.length);
+        for (String Command : Commands) {
+            android.util.Log.i(TAG, Command);
+            SimpleCommand command = new SimpleCommand(Command);
+            batch.add(command);
+            futures.add(newFuture(command));
+        }
+        addAll(batch);
+        for (CommandFuture<SimpleCommand> future : futures) {
+            future.addCallback(logCallback, CommandFuture.DIRECT);
+        }
+        return futures;
+    }
+
+    /**
+     * Runs several shell commands like execCommand() but writes them all at once, see
+     * submitBatch()
+     *
+     * @return output of every command
+     * @throws FailedExecuteCommand for the first command which failed, after all have finished
+     */
+    public String[] execBatch(String... Commands) throws FailedExecuteCommand {
+        List<CommandFuture<SimpleCommand>> futures;
+        try {
+            futures = submitBatch(Commands);
+        } catch (IOException e) {
+            throw new FailedExecuteCommand(new SimpleCommand(Commands));
+        }
+        String[] outputs = new String[futures.size()];
+        FailedExecuteCommand failed = null;
+        for (int i = 0; i < outputs.length; i++) {
+            try {
+                outputs[i] = futures.get(i).getOutput();
+            } catch (FailedExecuteCommand e) {
+                if (failed == null) failed = e;
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return outputs;
+    }
+
+    /**
+     * Queues a shell command without waiting for it, see submit(Command)
+     *
+     * @param Command for example "echo 123"
+     * @return use getOutput() to get the output like from execCommand()
+     */
+    public CommandFuture<SimpleCommand> submit(String Command) throws IOException,
+            FailedExecuteCommand {
+        android.util.Log.i(TAG, Command);
+        CommandFuture<SimpleCommand> future = submit(new SimpleCommand(Command));
+        future.addCallback(logCallback, CommandFuture.DIRECT);
+        return future;
     }
 
     /**
@@ -348,12 +682,28 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Returns number of queued commands
+     * @return process id of the shell, 0 if unknown
+     */
+    int getPid() {
+        return pid;
+    }
+
+    /**
+     * @return false if the shell has been closed or its process ended
+     */
+    public boolean isAlive() {
+        return !close && !dead;
+    }
+
+    /**
+     * Returns number of commands which are queued or running
      *
      * @return
      */
     public int getCommandsSize() {
-        return commands.size();
+        synchronized (commands) {
+            return commands.size() + running.size();
+        }
     }
 
 
@@ -362,112 +712,78 @@ public class Shell implements Closeable {
      *
      * @param Command for example "echo 123"
      * @return Output of command for example "123"
-     * @throws FailedExecuteCommand
+     * @throws FailedExecuteCommand if the exit code is not 0 or the output was longer than
+     *                              Command.DEFAULT_CAPTURE_LIMIT
      */
 
 
     public String execCommand(String Command) throws FailedExecuteCommand {
-        final SimpleCommand command = new SimpleCommand(Command);
-        try {
-            android.util.Log.i(TAG, Command);
-            this.add(command).waitForFinish();
-            String output = command.getOutput();
-            logCommand(command);
-            android.util.Log.i(TAG, output);
-            if (command.getExitCode() != 0) {
-                throw new Exception("Exit-Code not 0");
-            }
-            return output;
-        } catch (Exception e) {
-            logCommand(command);
-            android.util.Log.i(TAG, "Failed: " + command.getOutput());
-            throw new FailedExecuteCommand(command);
-        }
+        return execCommand(new SimpleCommand(Command), RootCommands.DEFAULT_TIMEOUT, true);
+    }
+
+    /**
+     * Like execCommand(String) but with its own timeout, for commands like dd which take longer
+     * than RootCommands.DEFAULT_TIMEOUT
+     *
+     * @param timeout milliseconds counted from the start of the command, 0 = no timeout
+     */
+    public String execCommand(String Command, int timeout) throws FailedExecuteCommand {
+        return execCommand(new SimpleCommand(Command), timeout, true);
     }
 
     public String execCommand(String Command, boolean waitForFinish) throws FailedExecuteCommand {
-        final SimpleCommand command = new SimpleCommand(Command);
-        try {
-            android.util.Log.i(TAG, Command);
-            if (waitForFinish) {
-                this.add(command).waitForFinish();
-            } else {
-                this.add(command);
-            }
-            String output = command.getOutput();
-            logCommand(command);
-            android.util.Log.i(TAG, output);
-            if (command.getExitCode() != 0) {
-                throw new Exception("Exit-Code not 0");
-            }
-            return output;
-        } catch (Exception e) {
-            logCommand(command);
-            android.util.Log.i(TAG, "Failed: " + command.getOutput());
-            throw new FailedExecuteCommand(command);
-        }
+        return execCommand(new SimpleCommand(Command), RootCommands.DEFAULT_TIMEOUT,
+                waitForFinish);
     }
 
     public String execCommand(Command command) throws FailedExecuteCommand {
-        final SimpleCommand simpleCommand = new SimpleCommand(command.getCommand());
-        try {
-            android.util.Log.i(TAG, simpleCommand.getCommand());
-            this.add(simpleCommand).waitForFinish();
-            String output = simpleCommand.getOutput();
-            logCommand(simpleCommand);
-            android.util.Log.i(TAG, output);
-            if (simpleCommand.getExitCode() != 0) {
-                throw new Exception("Exit-Code not 0");
-            }
-            return output;
-        } catch (Exception e) {
-            logCommand(simpleCommand);
-            android.util.Log.i(TAG, "Failed: " + command.getCommand());
-            throw new FailedExecuteCommand(command);
-        }
+        return execCommand(new SimpleCommand(command.getCommand()), command.getTimeout(), true);
     }
 
     public String execCommand(Command command, boolean waitForFinish) throws FailedExecuteCommand {
-        final SimpleCommand simpleCommand = new SimpleCommand(command.getCommand());
+        return execCommand(new SimpleCommand(command.getCommand()), command.getTimeout(),
+                waitForFinish);
+    }
+
+    /**
+     * Runs the command for all execCommand() variants and journals it once
+     *
+     * @param timeout       milliseconds counted from the start of the command, 0 = no timeout
+     * @param waitForFinish false only queues the command and returns the output so far
+     */
+    private String execCommand(SimpleCommand command, int timeout, boolean waitForFinish)
+            throws FailedExecuteCommand {
+        command.setTimeout(timeout);
+        android.util.Log.i(TAG, command.getCommand());
+        boolean failed;
         try {
+            add(command);
             if (waitForFinish) {
-                this.add(simpleCommand).waitForFinish();
-            } else {
-                this.add(simpleCommand);
+                command.waitForFinish();
             }
-            String output = simpleCommand.getOutput();
-            android.util.Log.i(TAG, simpleCommand.getCommand());
-            logCommand(simpleCommand);
-            if (simpleCommand.getExitCode() != 0) {
-                throw new Exception("Exit-Code not 0");
-            }
-            return output;
+            failed = command.getExitCode() != 0;
         } catch (Exception e) {
-            logCommand(simpleCommand);
+            failed = true;
+        }
+        logCommand(command);
+        String output = command.getOutput();
+        if (command.isOutputTruncated()) {
+            // a cut off output would be parsed as if it was complete
+            android.util.Log.w(TAG, "Output exceeded " + Command.DEFAULT_CAPTURE_LIMIT
+                    + " bytes: " + command.getCommand());
+            failed = true;
+        }
+        if (failed) {
+            android.util.Log.i(TAG, "Failed: " + output);
             throw new FailedExecuteCommand(command);
         }
+        android.util.Log.i(TAG, output);
+        return output;
     }
 
     private void logCommand(SimpleCommand command) {
-        try {
-            if (mContext != null) {
-                if (mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).getBoolean(PREF_LOG, false)) {
-                    String Log = "";
-                    if (command.getExitCode() == 0) {
-                        Log += "\nCommand:\n" + command.getCommand();
-                    } else {
-                        Log += "\nFailed execute:\n" + command.getCommand() + "\n";
-                    }
-                    if (!command.getOutput().equals("")) {
-                        Log += "\n\nOutput:\n" + command.getOutput();
-                    }
-                    FileOutputStream fo = mContext.openFileOutput(Logs, Context.MODE_APPEND);
-                    fo.write(Log.getBytes());
-                    fo.close();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (journal != null) {
+            journal.log(command);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import android.content.Context;
+
+import org.sufficientlysecure.rootcommands.command.CommandFuture;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps several shells open, so a long running command (like dd) on one of them doesn't block
+ * short commands on the others.
+ * <p/>
+ * Commands without ordering requirements go to the least busy shell. Commands which have to run
+ * in order on the same shell (remount, write, remount) use getShell(key), every key is bound to
+ * one of the shells which are alive. Keys requested before all shells are started are spread to
+ * the new shells once these are ready. Dead shells are replaced when they are requested.
+ */
+public class ShellPool implements Closeable {
+
+    private final Context mContext;
+    private final boolean root;
+    private final Shell[] shells;
+    // index of the shell each key is bound to, in the order the keys were bound
+    private final Map<Object, Integer> affinity = new LinkedHashMap<Object, Integer>();
+    private boolean closed = false;
+
+    private ShellPool(Context mContext, boolean root, int size) throws IOException {
+        this.mContext = mContext;
+        this.root = root;
+        shells = new Shell[Math.max(1, size)];
+        // first shell synchronously, it tells if root access is given at all
+        shells[0] = startShell();
+        if (shells.length > 1) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp();
+                }
+            }, "ShellPool WarmUp").start();
+        }
+    }
+
+    /**
+     * Start pool of root shells
+     *
+     * @param mContext
+     * @param size number of shells
+     * @return
+     * @throws IOException if the first shell can't be started
+     */
+    public static ShellPool startRootShells(Context mContext, int size) throws IOException {
+        Log.d(RootCommands.TAG, "Starting Root ShellPool with " + size + " shells");
+        return new ShellPool(mContext, true, size);
+    }
+
+    /**
+     * Starts a pool of root shells on a background thread and returns immediately. The su
+     * process and its handshake run while the caller inflates its UI or extracts files, get()
+     * waits for the pool.
+     *
+     * @param mContext
+     * @param size number of shells
+     * @return pool once the first shell is started, get() throws an ExecutionException with the
+     * IOException of startRootShells() if root access is denied
+     */
+    public static Future<ShellPool> startRootShellsAsync(final Context mContext, final int size) {
+        FutureTask<ShellPool> start = new FutureTask<ShellPool>(new Callable<ShellPool>() {
+            @Override
+            public ShellPool call() throws IOException {
+                return startRootShells(mContext, size);
+            }
+        });
+        new Thread(start, "ShellPool Start").start();
+        return start;
+    }
+
+    /**
+     * Start pool of default sh shells
+     *
+     * @param size number of shells
+     * @return
+     * @throws IOException if the first shell can't be started
+     */
+    public static ShellPool startShells(int size) throws IOException {
+        Log.d(RootCommands.TAG, "Starting ShellPool with " + size + " shells");
+        return new ShellPool(null, false, size);
+    }
+
+    private Shell startShell() throws IOException {
+        return root ? Shell.startRootShell(mContext) : Shell.startShell();
+    }
+
+    /**
+     * Starts the remaining shells, the pool works with less shells until they are started
+     */
+    private void warmUp() {
+        for (int i = 1; i < shells.length; i++) {
+            try {
+                Shell shell = startShell();
+                synchronized (this) {
+                    if (closed) {
+                        shell.close();
+                        return;
+                    }
+                    if (shells[i] == null) {
+                        shells[i] = shell;
+                        rebalance();
+                        continue;
+                    }
+                }
+                shell.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "Unable to start shell " + i + " of the pool", e);
+            }
+        }
+    }
+
+    /**
+     * @return least busy shell, for commands which don't depend on other commands
+     * @throws IOException if no shell is alive and none could be started
+     */
+    public Shell getShell() throws IOException {
+        replaceDead();
+        synchronized (this) {
+            return shells[getLeastBusy(false)];
+        }
+    }
+
+    /**
+     * Commands requested with the same key always run on the same shell (in order). New keys are
+     * bound to the alive shell with the fewest keys, so different keys run in parallel as long as
+     * there are enough shells.
+     *
+     * @param key for example the class using the shell
+     * @throws IOException if no shell is alive and none could be started
+     */
+    public Shell getShell(Object key) throws IOException {
+        replaceDead();
+        synchronized (this) {
+            // keys skipped by the last rebalance (their shell was busy) may be movable now
+            rebalance();
+            Integer index = affinity.get(key);
+            if (index == null || !shells[index].isAlive()) {
+                // new key, or its shell died and couldn't be replaced
+                affinity.remove(key);
+                index = getLeastBusy(true);
+                affinity.put(key, index);
+            }
+            return shells[index];
+        }
+    }
+
+    /**
+     * Runs command on the least busy shell without waiting for it
+     */
+    public CommandFuture<SimpleCommand> submit(String command) throws IOException,
+            FailedExecuteCommand {
+        return getShell().submit(command);
+    }
+
+    /**
+     * Runs command on the least busy shell, see Shell.execCommand()
+     */
+    public String execCommand(String command) throws FailedExecuteCommand {
+        try {
+            return getShell().execCommand(command);
+        } catch (IOException e) {
+            throw new FailedExecuteCommand(new SimpleCommand(command));
+        }
+    }
+
+    /**
+     * @return number of started shells
+     */
+    public synchronized int getSize() {
+        int size = 0;
+        for (Shell shell : shells) {
+            if (shell != null) size++;
+        }
+        return size;
+    }
+
+    /**
+     * Close all shells
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (Shell shell : shells) {
+            if (shell != null) shell.close();
+        }
+    }
+
+    /**
+     * @param byKeys prefer shells with less keys bound to them, then the shell with less queued
+     *               commands
+     * @return index of an alive shell
+     */
+    private int getLeastBusy(boolean byKeys) throws IOException {
+        if (closed) {
+            throw new IOException("ShellPool has been closed");
+        }
+        int best = -1;
+        int bestKeys = 0, bestCommands = 0;
+        for (int i = 0; i < shells.length; i++) {
+            if (shells[i] == null || !shells[i].isAlive()) continue;
+            int keys = byKeys ? getKeyCount(i) : 0;
+            int commands = shells[i].getCommandsSize();
+            if (best < 0 || keys < bestKeys || (keys == bestKeys && commands < bestCommands)) {
+                best = i;
+                bestKeys = keys;
+                bestCommands = commands;
+            }
+        }
+        if (best < 0) {
+            throw new IOException("No shell of the pool is alive");
+        }
+        return best;
+    }
+
+    private int getKeyCount(int index) {
+        int count = 0;
+        for (Integer bound : affinity.values()) {
+            if (bound == index) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Moves keys from shells with more keys to a shell with less keys (like one which just
+     * started). Only keys whose shell is idle are moved, nothing queued for them can run out of
+     * order. The newest keys are moved first, the first ones stay where they are.
+     */
+    private void rebalance() {
+        List<Map.Entry<Object, Integer>> entries =
+                new ArrayList<Map.Entry<Object, Integer>>(affinity.entrySet());
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Map.Entry<Object, Integer> entry = entries.get(i);
+            int from = entry.getValue();
+            int to;
+            try {
+                to = getLeastBusy(true);
+            } catch (IOException e) {
+                return;
+            }
+            if (getKeyCount(to) + 1 < getKeyCount(from)
+                    && shells[from].getCommandsSize() == 0) {
+                entry.setValue(to);
+            }
+        }
+    }
+
+    /**
+     * Replaces all shells which died, without holding the lock while su starts
+     */
+    private void replaceDead() throws IOException {
+        for (int i = 0; i < shells.length; i++) {
+            Shell dead;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("ShellPool has been closed");
+                }
+                dead = shells[i];
+            }
+            if (dead != null && !dead.isAlive()) {
+                replace(i, dead);
+            }
+        }
+    }
+
+    /**
+     * Closes old and puts a new shell at index, unless another thread replaced it meanwhile
+     *
+     * @return true if the shell has been replaced
+     */
+    private boolean replace(int index, Shell old) {
+        Log.d(RootCommands.TAG, "Replacing shell " + index + " of the pool");
+        try {
+            old.close();
+        } catch (IOException ignored) {
+        }
+        Shell shell;
+        try {
+            shell = startShell();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "Unable to replace shell " + index, e);
+            return false;
+        }
+        synchronized (this) {
+            if (!closed && shells[index] == old) {
+                shells[index] = shell;
+                return true;
+            }
+        }
+        try {
+            shell.close();
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+}
@@ -31,6 +31,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -49,6 +56,13 @@ public class Toolbox {
     public static final int REBOOT_SHUTDOWN = 3;
     public static final int REBOOT_RECOVERY = 4;
     public static final int REBOOT_BOOTLOADER = 5;
+    public static final String CHECKSUM_SHA1 = "sha1";
+    public static final String CHECKSUM_SHA256 = "sha256";
+    public static final String CHECKSUM_MD5 = "md5";
+    // hashing whole partitions takes longer than the default shell timeout
+    private static final int CHECKSUM_TIMEOUT = 10 * 60 * 1000;
+    // raw mode in hex|uid|gid|owner|group|size|path, the path last as it may contain |
+    private static final String STAT_FORMAT = "S|%f|%u|%g|%U|%G|%s|%n";
     private Shell shell;
 
     /**
@@ -165,19 +179,86 @@ public class Toolbox {
     public String getFilePermissions(String file) throws FailedExecuteCommand {
         Log.d(RootCommands.TAG, "Checking permissions for " + file);
 
-        String permissions = null;
-
-        if (fileExists(file)) {
-            Log.d(RootCommands.TAG, file + " was found.");
-
-            LsCommand lsCommand = new LsCommand(file);
+        FileStat stat = getFileStat(file);
+        return stat != null ? stat.getPermissions() : null;
+    }
 
-            shell.execCommand(lsCommand);
+    /**
+     * @param file full path of the file
+     * @return metadata of the file, null if it doesn't exist
+     */
+    public FileStat getFileStat(String file) throws FailedExecuteCommand {
+        return getFileStats(file).get(file);
+    }
 
-            permissions = lsCommand.getPermissions();
+    /**
+     * Reads the metadata of a list of files with a single command. Uses stat (toybox or
+     * busybox), falls back to toolbox ls -ld on devices which have neither.
+     * <p/>
+     * (commands: stat, readlink or ls)
+     *
+     * @param files full paths of the files, symlinks are not followed
+     * @return metadata of the files which exist, in the order they were passed and mapped by
+     * the path as passed
+     */
+    public Map<String, FileStat> getFileStats(String... files) throws FailedExecuteCommand {
+        Map<String, FileStat> stats = new LinkedHashMap<String, FileStat>();
+        if (files.length == 0) {
+            return stats;
+        }
+        StringBuilder list = new StringBuilder();
+        for (String file : files) {
+            list.append(' ').append(quote(file));
+        }
+        String script = "S=; if stat -c %f / >/dev/null 2>&1; then S=stat;"
+                + " elif busybox stat -c %f / >/dev/null 2>&1; then S='busybox stat'; fi;"
+                + " if [ -n \"$S\" ]; then $S -c '" + STAT_FORMAT + "'" + list + " 2>/dev/null;"
+                + " for f in" + list + "; do [ -h \"$f\" ] && echo \"T|$f|$(readlink \"$f\""
+                + " 2>/dev/null || busybox readlink \"$f\" 2>/dev/null)\"; done;"
+                + " else for f in" + list + "; do echo \"L|$f|$(toolbox ls -ld \"$f\""
+                + " 2>/dev/null)\"; done; fi; true";
+        String output = shell.execCommand(script);
+
+        Map<String, FileStat> found = new HashMap<String, FileStat>();
+        // ls fallback prints exactly one line per file, in the order of the files
+        int lsLine = 0;
+        for (String line : output.split("\n")) {
+            FileStat stat = null;
+            if (line.startsWith("S|")) {
+                stat = FileStat.parseStat(line.substring(2));
+            } else if (line.startsWith("L|") && lsLine < files.length) {
+                String file = files[lsLine++];
+                String prefix = "L|" + file + "|";
+                if (line.startsWith(prefix)) {
+                    stat = FileStat.parseLs(file, line.substring(prefix.length()));
+                }
+            } else if (line.startsWith("T|")) {
+                for (FileStat link : found.values()) {
+                    String prefix = "T|" + link.getPath() + "|";
+                    if (link.isSymlink() && link.linkTarget == null && line.startsWith(prefix)) {
+                        link.linkTarget = line.substring(prefix.length());
+                        break;
+                    }
+                }
+            }
+            if (stat != null) {
+                found.put(stat.getPath(), stat);
+            }
+        }
+        for (String file : files) {
+            FileStat stat = found.get(file);
+            if (stat != null) {
+                stats.put(file, stat);
+            }
         }
+        return stats;
+    }
 
-        return permissions;
+    /**
+     * Quotes a path for the shell, nothing in it is expanded
+     */
+    static String quote(String file) {
+        return "'" + file.replace("'", "'\\''") + "'";
     }
 
     /**
@@ -214,14 +295,8 @@ public class Toolbox {
     public String getSymlink(String file) throws FailedExecuteCommand {
         Log.d(RootCommands.TAG, "Find symlink for " + file);
 
-        String symlink;
-
-        LsCommand lsCommand = new LsCommand(file);
-        shell.execCommand(lsCommand);
-
-        symlink = lsCommand.getSymlink();
-
-        return symlink;
+        FileStat stat = getFileStat(file);
+        return stat != null ? stat.getLinkTarget() : null;
     }
 
     /**
@@ -230,7 +305,8 @@ public class Toolbox {
      *
      * @param source              example: /data/data/org.adaway/files/hosts
      * @param destination         example: /system/etc/hosts
-     * @param remountAsRw         remounts the destination as read/write before writing to it
+     * @param remountAsRw         remounts the destination as read/write while writing to it, see
+     *                            withWritableMount()
      * @param preservePermissions tries to copy file attributes from source to destination, if only cat is available
      *                            only permissions are preserved
      * @return true if it was successfully copied
@@ -250,38 +326,49 @@ public class Toolbox {
             throw new FileNotFoundException("dd can only copy files!");
         }
 
-        // remount destination as read/write before copying to it
-        if (remountAsRw) {
-            if (!remount(destination, "RW")) {
-                Log.d(RootCommands.TAG,
-                        "Remounting failed! There is probably no need to remount this partition!");
-            }
-        }
-
         // get permissions of source before overwriting
         String permissions = null;
         if (preservePermissions) {
             permissions = getFilePermissions(source.getAbsolutePath());
         }
 
-        try {
-            shell.execCommand("toolbox dd if=" + source + " of="
-                    + destination);
-        } catch (FailedExecuteCommand e) {
-            shell.execCommand("toolbox cat " + source + " > "
-                    + destination);
-        }
-
+        FileBatch batch = new FileBatch().copy(source, destination);
         // set back permissions from source to destination
-        if (preservePermissions) {
-            setFilePermissions(destination, permissions);
+        if (permissions != null) {
+            batch.chmod(destination, permissions);
         }
 
-        // remount destination back to read only
         if (remountAsRw) {
-            if (!remount(destination, "RO")) {
-                Log.d(RootCommands.TAG,
-                        "Remounting failed! There is probably no need to remount this partition!");
+            withWritableMount(destination.getAbsolutePath(), batch);
+        } else {
+            shell.execCommand(batch.getScript());
+        }
+    }
+
+    /**
+     * Runs a batch of file operations as one shell script while the partition containing path is
+     * mounted read/write. The partition is only remounted if it is read only and is remounted
+     * read only afterwards, also if the batch fails. Use one batch for all files going to the
+     * same partition instead of remounting around each of them.
+     *
+     * @param path  file or directory on the partition, doesn't have to exist
+     * @param batch operations to execute, all of them should be on that partition
+     */
+    public void withWritableMount(String path, FileBatch batch) throws FailedExecuteCommand {
+        if (batch.isEmpty()) return;
+        Mount mount = MountTable.get().find(shell, path);
+        boolean readOnly = mount != null && !mount.getFlags().contains("rw");
+        if (readOnly && !remount(path, "RW")) {
+            Log.d(RootCommands.TAG,
+                    "Remounting failed! There is probably no need to remount this partition!");
+        }
+        try {
+            shell.execCommand(batch.getScript());
+        } finally {
+            // restore the flags it had before, a partition which was rw stays rw
+            if (readOnly && !remount(path, "RO")) {
+                Log.d(RootCommands.TAG, "Remounting " + mount.getMountPoint()
+                        + " back to read only failed!");
             }
         }
     }
@@ -325,10 +412,40 @@ public class Toolbox {
      * @return a boolean that will indicate whether or not the file exists.
      */
     public boolean fileExists(String file) throws FailedExecuteCommand {
-        FileExistsCommand fileExistsCommand = new FileExistsCommand(file);
-        shell.execCommand(fileExistsCommand);
+        return getFileStat(file) != null;
+    }
 
-        return fileExistsCommand.isFileExists();
+    /**
+     * Checks a list of files with a single command instead of one command per file. Useful to
+     * find partitions (Lollipop marks /dev as hidden, so File.exists() can't be used)
+     * <p/>
+     * (commands: ls)
+     *
+     * @param files full paths of the files to check
+     * @return the files which exist, in the order they were passed
+     */
+    public Set<String> getExistingFiles(String... files) throws FailedExecuteCommand {
+        Set<String> existing = new LinkedHashSet<String>();
+        if (files.length == 0) {
+            return existing;
+        }
+        StringBuilder script = new StringBuilder("for f in");
+        for (String file : files) {
+            script.append(' ').append(quote(file));
+        }
+        // print every file that ls can see, always exit with 0
+        script.append("; do ls \"$f\" >/dev/null 2>&1 && echo \"$f\"; done; true");
+        String output = shell.execCommand(script.toString());
+        Set<String> found = new HashSet<String>();
+        for (String line : output.split("\n")) {
+            found.add(line.trim());
+        }
+        for (String file : files) {
+            if (found.contains(file)) {
+                existing.add(file);
+            }
+        }
+        return existing;
     }
 
     /**
@@ -444,14 +561,14 @@ public class Toolbox {
      * @throws Exception if we cannot determine how the mount is mounted.
      */
     public String getMountedAs(String path) throws Exception {
-        ArrayList<Mount> mounts = Remounter.getMounts();
-        if (mounts != null) {
-            for (Mount mount : mounts) {
-                if (path.contains(mount.getMountPoint().getAbsolutePath())) {
-                    Log.d(RootCommands.TAG, (String) mount.getFlags().toArray()[0]);
-                    return (String) mount.getFlags().toArray()[0];
-                }
-            }
+        Mount mount = MountTable.get().find(shell, path);
+        if (mount != null) {
+            // flags are a set, "rw" or "ro" is not necessarily the first one
+            String mountedAs = mount.getFlags().contains("rw") ? "rw"
+                    : mount.getFlags().contains("ro") ? "ro"
+                    : (String) mount.getFlags().toArray()[0];
+            Log.d(RootCommands.TAG, mountedAs);
+            return mountedAs;
         }
         throw new Exception();
     }
@@ -514,8 +631,70 @@ public class Toolbox {
         }
     }
 
+    /**
+     * @return SHA1 of the file as hex String, null if it can't be read
+     */
     public String generateChecksum(File file) throws FailedExecuteCommand {
-        return shell.execCommand("sha1sum " + file.getAbsolutePath());
+        return generateChecksums(CHECKSUM_SHA1, file.getAbsolutePath())
+                .get(file.getAbsolutePath());
+    }
+
+    /**
+     * Hashes files or partitions with a single command. The files are split into one group per
+     * CPU core and the groups are hashed in parallel, each into its own file in $TMPDIR
+     * (/data/local/tmp if not set).
+     * <p/>
+     * (commands: sha1sum, sha256sum or md5sum of toybox or busybox)
+     *
+     * @param algorithm CHECKSUM_SHA1, CHECKSUM_SHA256 or CHECKSUM_MD5
+     * @param files     full paths of the files
+     * @return hex checksums mapped by the path as passed, files which can't be read are missing
+     */
+    public Map<String, String> generateChecksums(String algorithm, String... files)
+            throws FailedExecuteCommand {
+        Map<String, String> checksums = new LinkedHashMap<String, String>();
+        if (files.length == 0) {
+            return checksums;
+        }
+        int groups = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+        StringBuilder script = new StringBuilder("H=").append(algorithm).append("sum; $H")
+                .append(" /dev/null >/dev/null 2>&1 || H='busybox ").append(algorithm)
+                .append("sum';");
+        // sum tools flush a full buffer at a time, not whole lines, so the groups can't share
+        // stdout. Each group writes its own file, the files are printed after all are done.
+        script.append(" D=${TMPDIR:-/data/local/tmp}/checksums.$$;")
+                .append(" if mkdir -p \"$D\" 2>/dev/null; then");
+        for (int group = 0; group < groups; group++) {
+            script.append(" $H");
+            for (int i = group; i < files.length; i += groups) {
+                script.append(' ').append(quote(files[i]));
+            }
+            script.append(" >\"$D/").append(group).append("\" 2>/dev/null &");
+        }
+        script.append(" wait; cat \"$D\"/*; rm -rf \"$D\";");
+        // no writable temp dir, hash everything with one process instead
+        script.append(" else $H");
+        for (String file : files) {
+            script.append(' ').append(quote(file));
+        }
+        script.append(" 2>/dev/null; fi; true");
+        String output = shell.execCommand(script.toString(), CHECKSUM_TIMEOUT);
+
+        Map<String, String> found = new HashMap<String, String>();
+        for (String line : output.split("\n")) {
+            // <checksum>  <path>
+            String[] fields = line.trim().split("\\s+", 2);
+            if (fields.length == 2 && fields[0].matches("[0-9a-fA-F]+")) {
+                found.put(fields[1], fields[0].toLowerCase(Locale.US));
+            }
+        }
+        for (String file : files) {
+            String checksum = found.get(file);
+            if (checksum != null) {
+                checksums.put(file, checksum);
+            }
+        }
+        return checksums;
     }
 
     /**
@@ -586,169 +765,6 @@ public class Toolbox {
 
     }
 
-    /**
-     * Ls command to get permissions or symlinks
-     */
-    private class LsCommand extends Command {
-        private String fileName;
-        private String permissionRegex;
-        private Pattern permissionPattern;
-        private String symlinkRegex;
-        private Pattern symlinkPattern;
-
-        private String symlink;
-        private String permissions;
-
-        public LsCommand(String file) {
-            super("toolbox ls -l " + file);
-
-            // get only filename:
-            this.fileName = (new File(file)).getName();
-            Log.d(RootCommands.TAG, "fileName: " + fileName);
-
-            /**
-             * regex to get pid out of ps line, example:
-             *
-             * <pre>
-             * with busybox:
-             *     lrwxrwxrwx     1 root root            15 Aug 13 12:14 dev/stdin -> /proc/self/fd/0
-             *
-             * with toolbox:
-             *     lrwxrwxrwx root root            15 Aug 13 12:14 stdin -> /proc/self/fd/0
-             *
-             * Regex:
-             * ^.*?(\\S{10})                     .*                                                  $
-             * </pre>
-             */
-            permissionRegex = "^.*?(\\S{10}).*$";
-            permissionPattern = Pattern.compile(permissionRegex);
-
-            /**
-             * regex to get symlink
-             *
-             * <pre>
-             *     ->           /proc/self/fd/0
-             * ^.*?\\-\\> \\s+  (.*)           $
-             * </pre>
-             */
-            symlinkRegex = "^.*?\\-\\>\\s+(.*)$";
-            symlinkPattern = Pattern.compile(symlinkRegex);
-        }
-
-        public String getSymlink() {
-            return symlink;
-        }
-
-        public String getPermissions() {
-            return permissions;
-        }
-
-        /**
-         * Converts permission string from ls command to numerical value. Example: -rwxrwxrwx gets
-         * to 777
-         *
-         * @param permissions
-         * @return
-         */
-        private String convertPermissions(String permissions) {
-            int owner = getGroupPermission(permissions.substring(1, 4));
-            int group = getGroupPermission(permissions.substring(4, 7));
-            int world = getGroupPermission(permissions.substring(7, 10));
-
-            return "" + owner + group + world;
-        }
-
-        /**
-         * Calculates permission for one group
-         *
-         * @param permission
-         * @return value of permission string
-         */
-        private int getGroupPermission(String permission) {
-            int value = 0;
-
-            if (permission.charAt(0) == 'r') {
-                value += 4;
-            }
-            if (permission.charAt(1) == 'w') {
-                value += 2;
-            }
-            if (permission.charAt(2) == 'x') {
-                value += 1;
-            }
-
-            return value;
-        }
-
-        @Override
-        public void output(int id, String line) {
-            // general check if line contains file
-            if (line.contains(fileName)) {
-
-                // try to match line exactly
-                try {
-                    Matcher permissionMatcher = permissionPattern.matcher(line);
-                    if (permissionMatcher.find()) {
-                        permissions = convertPermissions(permissionMatcher.group(1));
-
-                        Log.d(RootCommands.TAG, "Found permissions: " + permissions);
-                    } else {
-                        Log.d(RootCommands.TAG, "Permissions were not found in ls command!");
-                    }
-
-                    // try to parse for symlink
-                    Matcher symlinkMatcher = symlinkPattern.matcher(line);
-                    if (symlinkMatcher.find()) {
-                        /*
-                         * TODO: If symlink points to a file in the same directory the path is not
-                         * absolute!!!
-                         */
-                        symlink = symlinkMatcher.group(1);
-                        Log.d(RootCommands.TAG, "Symlink found: " + symlink);
-                    } else {
-                        Log.d(RootCommands.TAG, "No symlink found!");
-                    }
-                } catch (Exception e) {
-                    Log.e(RootCommands.TAG, "Error with regex!", e);
-                }
-            }
-        }
-
-        @Override
-        public void afterExecution(int id, int exitCode) {
-        }
-
-    }
-
-    /**
-     * This command checks if a file exists
-     */
-    private class FileExistsCommand extends Command {
-        private String file;
-        private boolean fileExists = false;
-
-        public FileExistsCommand(String file) {
-            super("toolbox ls " + file);
-            this.file = file;
-        }
-
-        public boolean isFileExists() {
-            return fileExists;
-        }
-
-        @Override
-        public void output(int id, String line) {
-            if (line.trim().equals(file)) {
-                fileExists = true;
-            }
-        }
-
-        @Override
-        public void afterExecution(int id, int exitCode) {
-        }
-
-    }
-
     public abstract class WithPermissions {
         abstract void whileHavingPermissions();
     }
@@ -17,6 +17,7 @@
 
 package org.sufficientlysecure.rootcommands.command;
 
+import org.sufficientlysecure.rootcommands.CommandStats;
 import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
@@ -28,13 +29,48 @@ import java.io.OutputStream;
 import java.util.concurrent.TimeoutException;
 
 public abstract class Command {
+    // every output line is passed to output(id, line)
+    public static final int OUTPUT_LINES = 0;
+    // output is collected in a bounded buffer, see getCapturedOutput()
+    public static final int OUTPUT_CAPTURE = 1;
+    // output is dropped without decoding it
+    public static final int OUTPUT_DISCARD = 2;
+    public static final int DEFAULT_CAPTURE_LIMIT = 4 * 1024 * 1024;
+    // on timeout only the processes of the command are killed, the shell keeps running
+    public static final int TIMEOUT_KILL_COMMAND = 0;
+    // on timeout the whole shell is closed, all queued commands fail
+    public static final int TIMEOUT_CLOSE_SHELL = 1;
+    // termination reason of commands which timed out
+    public static final String TIMEOUT = "Timeout";
+    private static final String BROKEN_BUSYBOX = "Value too large for defined data type";
+    private static final byte[] BROKEN_BUSYBOX_BYTES = BROKEN_BUSYBOX.getBytes();
+
     final String command[];
     boolean finished = false;
     boolean brokenBusyboxDetected = false;
     int exitCode;
     int id;
     int timeout = RootCommands.DEFAULT_TIMEOUT;
+    private int timeoutPolicy = TIMEOUT_KILL_COMMAND;
     Shell shell = null;
+    // set if the command has been submitted asynchronously
+    CommandFuture<?> future = null;
+    private String terminationReason = null;
+    int outputMode = OUTPUT_LINES;
+    private int captureLimit = DEFAULT_CAPTURE_LIMIT;
+    private byte[] captured = null;
+    private int capturedLength = 0;
+    private boolean truncated = false;
+    private String capturedText = null;
+    private int capturedTextLength = 0;
+    // System.nanoTime() when the command was queued, written to the shell, started and finished,
+    // 0 if it didn't get there
+    private long queuedAt = 0;
+    private long writtenAt = 0;
+    private long startedAt = 0;
+    private long finishedAt = 0;
+    // result of getKind()
+    private String kind = null;
 
     public Command(String... command) {
         this.command = command;
@@ -54,10 +90,131 @@ public abstract class Command {
     public void addedToShell(Shell shell, int id) throws FailedExecuteCommand {
         this.shell = shell;
         this.id = id;
+        queuedAt = System.nanoTime();
         if (exitCode != 0)
             throw new FailedExecuteCommand(this);
     }
 
+    /**
+     * Sequence number given by the shell, only unique among the commands queued on it
+     *
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * This is called from Shell right before the command is written to the shell process
+     */
+    public void writtenToShell() {
+        writtenAt = System.nanoTime();
+    }
+
+    /**
+     * This is called from Shell when the command starts running, commands written together run
+     * one after another
+     *
+     * @param nanoTime System.nanoTime() of the start
+     */
+    public void started(long nanoTime) {
+        startedAt = nanoTime;
+    }
+
+    /**
+     * @return System.nanoTime() when the command started running, 0 if it is still queued
+     */
+    public long getStartTime() {
+        return startedAt;
+    }
+
+    /**
+     * @param timeout milliseconds the command may run, counted from its start (not from adding
+     *                it to the shell). 0 = no timeout. Has to be set before adding it.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param policy TIMEOUT_KILL_COMMAND or TIMEOUT_CLOSE_SHELL
+     */
+    public void setTimeoutPolicy(int policy) {
+        timeoutPolicy = policy;
+    }
+
+    public int getTimeoutPolicy() {
+        return timeoutPolicy;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * This is called from Shell when the timeout expired, before the command is killed
+     *
+     * @return false if the command finished meanwhile
+     */
+    public synchronized boolean timedOut() {
+        if (finished) return false;
+        terminationReason = TIMEOUT;
+        return true;
+    }
+
+    /**
+     * @return milliseconds from adding the command to the shell until it started, -1 if it has
+     * not been started
+     */
+    public long getQueueTime() {
+        long start = startedAt != 0 ? startedAt : writtenAt;
+        if (queuedAt == 0 || start == 0) return -1;
+        return (start - queuedAt) / 1000000;
+    }
+
+    /**
+     * @return milliseconds the command ran on the shell, -1 if it has not finished. Includes
+     * the time it waited for the shell if it has been terminated before its start was known.
+     */
+    public long getExecutionTime() {
+        long start = startedAt != 0 ? startedAt : writtenAt != 0 ? writtenAt : queuedAt;
+        if (finishedAt == 0 || start == 0) return -1;
+        return (finishedAt - start) / 1000000;
+    }
+
+    /**
+     * Name of the program executed, used to group statistics. For busybox and toolbox applets
+     * this is the applet, for example "dd" for "/data/.../busybox dd if=..."
+     */
+    public String getKind() {
+        if (kind == null) {
+            kind = parseKind();
+        }
+        return kind;
+    }
+
+    private String parseKind() {
+        String first = command.length > 0 && command[0] != null ? command[0] : "";
+        String[] words = first.trim().split("\\s+");
+        String kind = "";
+        for (String word : words) {
+            word = word.replace("\"", "").replace("'", "").replace("(", "");
+            // skip environment assignments like LD_LIBRARY_PATH=...
+            if (word.length() == 0 || (kind.length() == 0 && word.contains("="))) continue;
+            word = word.substring(word.lastIndexOf('/') + 1);
+            if (kind.length() > 0) return word;
+            kind = word;
+            if (!kind.equals("busybox") && !kind.equals("toolbox") && !kind.equals("toybox")) {
+                break;
+            }
+        }
+        return kind;
+    }
+
     /**
      * Gets command string executed on the shell
      *
@@ -89,7 +246,7 @@ public abstract class Command {
          * It is giving "Value too large for defined data type" on certain file operations (e.g. ls
          * and chown) in certain directories (e.g. /data/data)
          */
-        if (line.contains("Value too large for defined data type")) {
+        if (line.contains(BROKEN_BUSYBOX)) {
             Log.e(RootCommands.TAG, "Busybox is broken with high probability due to line: " + line);
             brokenBusyboxDetected = true;
         }
@@ -100,6 +257,104 @@ public abstract class Command {
 
     public abstract void output(int id, String line);
 
+    /**
+     * Called by the shell for every output line, without the line end. The bytes are only valid
+     * during the call.
+     */
+    public void processOutput(byte[] line, int offset, int length) {
+        switch (outputMode) {
+            case OUTPUT_CAPTURE:
+                checkBrokenBusybox(line, offset, length);
+                capture(line, offset, length);
+                break;
+            case OUTPUT_DISCARD:
+                checkBrokenBusybox(line, offset, length);
+                break;
+            default:
+                processOutput(new String(line, offset, length));
+        }
+    }
+
+    // same check as processOutput(String), done on the bytes so captured or discarded output
+    // is never decoded for it. Lines beyond the capture limit are checked too.
+    private void checkBrokenBusybox(byte[] line, int offset, int length) {
+        if (brokenBusyboxDetected) return;
+        int last = offset + length - BROKEN_BUSYBOX_BYTES.length;
+        outer:
+        for (int i = offset; i <= last; i++) {
+            for (int j = 0; j < BROKEN_BUSYBOX_BYTES.length; j++) {
+                if (line[i + j] != BROKEN_BUSYBOX_BYTES[j]) continue outer;
+            }
+            Log.e(RootCommands.TAG, "Busybox is broken with high probability due to output of "
+                    + id);
+            brokenBusyboxDetected = true;
+            return;
+        }
+    }
+
+    private synchronized void capture(byte[] bytes, int offset, int length) {
+        // room for the line end
+        int count = Math.min(length + 1, captureLimit - capturedLength);
+        if (count < length + 1) {
+            truncated = true;
+        }
+        if (count <= 0) return;
+        if (captured == null || capturedLength + count > captured.length) {
+            int size = Math.max(256, captured == null ? 0 : captured.length * 2);
+            size = Math.min(Math.max(size, capturedLength + count), captureLimit);
+            byte[] bigger = new byte[size];
+            if (captured != null) {
+                System.arraycopy(captured, 0, bigger, 0, capturedLength);
+            }
+            captured = bigger;
+        }
+        if (count > length) {
+            System.arraycopy(bytes, offset, captured, capturedLength, length);
+            captured[capturedLength + length] = '\n';
+        } else {
+            System.arraycopy(bytes, offset, captured, capturedLength, count);
+        }
+        capturedLength += count;
+    }
+
+    /**
+     * @param mode OUTPUT_LINES, OUTPUT_CAPTURE or OUTPUT_DISCARD, has to be set before the command
+     *             is added to a shell
+     */
+    public void setOutputMode(int mode) {
+        outputMode = mode;
+    }
+
+    public int getOutputMode() {
+        return outputMode;
+    }
+
+    /**
+     * @param bytes maximum output kept in OUTPUT_CAPTURE mode, the rest is dropped and
+     *              isOutputTruncated() returns true
+     */
+    public void setCaptureLimit(int bytes) {
+        captureLimit = bytes;
+    }
+
+    /**
+     * @return output collected in OUTPUT_CAPTURE mode, lines are separated by \n
+     */
+    public synchronized String getCapturedOutput() {
+        if (capturedText == null || capturedTextLength != capturedLength) {
+            capturedText = captured == null ? "" : new String(captured, 0, capturedLength);
+            capturedTextLength = capturedLength;
+        }
+        return capturedText;
+    }
+
+    /**
+     * @return true if the output has been longer than the capture limit
+     */
+    public boolean isOutputTruncated() {
+        return truncated;
+    }
+
     public void processAfterExecution(int exitCode) {
         Log.d(RootCommands.TAG, "ID: " + id + ", ExitCode: " + exitCode);
 
@@ -113,12 +368,26 @@ public abstract class Command {
     }
 
     public void setExitCode(int code) {
+        boolean first;
+        String reason;
         synchronized (this) {
+            // a terminated command may be finished twice, by the timeout and by the dying shell
+            first = finishedAt == 0;
+            if (first) {
+                finishedAt = System.nanoTime();
+            }
             exitCode = code;
             finished = true;
             commandFinished(id);
+            reason = terminationReason;
             this.notifyAll();
         }
+        if (first) {
+            CommandStats.get().record(getKind(), getQueueTime(), getExecutionTime(), code != 0);
+        }
+        if (future != null) {
+            future.onExit(reason);
+        }
     }
 
     /**
@@ -136,14 +405,20 @@ public abstract class Command {
     }
 
     public void terminated(String reason) {
+        synchronized (this) {
+            // keep the timeout, the shell is closed because of it
+            if (terminationReason == null) {
+                terminationReason = reason;
+            }
+        }
         setExitCode(-1);
         Log.d(RootCommands.TAG, "Command " + id + " did not finish, because of " + reason);
     }
 
     /**
-     * Waits for this command to finish and forwards exitCode into afterExecution method
+     * Waits for this command to finish and forwards exitCode into afterExecution method. The
+     * timeout is handled by the shell, which kills the command and finishes it.
      *
-     * @param timeout
      * @throws TimeoutException
      * @throws BrokenBusyboxException
      */
@@ -151,16 +426,14 @@ public abstract class Command {
         synchronized (this) {
             while (!finished) {
                 try {
-                    this.wait(timeout);
+                    this.wait();
                 } catch (InterruptedException e) {
                     Log.e(RootCommands.TAG, "InterruptedException in waitForFinish()", e);
                 }
+            }
 
-                if (!finished) {
-                    finished = true;
-                    terminate("Timeout");
-                    throw new TimeoutException("Timeout has occurred.");
-                }
+            if (TIMEOUT.equals(terminationReason)) {
+                throw new TimeoutException("Timeout has occurred.");
             }
 
             if (brokenBusyboxDetected) {
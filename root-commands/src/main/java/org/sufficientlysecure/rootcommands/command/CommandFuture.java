@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands.command;
+
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of a command submitted with Shell.submit(). Nothing blocks until get() is called,
+ * callbacks are run on the executor given when they are added.
+ */
+public class CommandFuture<T extends Command> implements Future<T> {
+
+    /**
+     * Executor running callbacks on the thread which finished the command (the shell output
+     * reader or the timeout thread), only for short callbacks
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final T command;
+    private final Canceller canceller;
+    private final ArrayList<Runnable> callbacks = new ArrayList<Runnable>();
+    private boolean done = false;
+    private boolean cancelled = false;
+    private Exception failure = null;
+
+    /**
+     * Called by the shell when a command should be removed before it has been written
+     */
+    public interface Canceller {
+        boolean cancel(Command command);
+    }
+
+    public interface Callback<T extends Command> {
+        /**
+         * Command has been executed, also called if the exit code is not 0
+         */
+        void onFinished(T command);
+
+        /**
+         * Command timed out, has been cancelled or the shell died
+         */
+        void onFailed(T command, Exception e);
+    }
+
+    public CommandFuture(T command, Canceller canceller) {
+        this.command = command;
+        this.canceller = canceller;
+        command.future = this;
+    }
+
+    public T getCommand() {
+        return command;
+    }
+
+    /**
+     * Adds a callback which is run once the command finished or failed. If that already happened
+     * the callback is run right away.
+     */
+    public CommandFuture<T> addCallback(final Callback<T> callback, final Executor executor) {
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception e;
+                        synchronized (CommandFuture.this) {
+                            e = failure;
+                        }
+                        if (e == null) {
+                            callback.onFinished(command);
+                        } else {
+                            callback.onFailed(command, e);
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(dispatch);
+                return this;
+            }
+        }
+        dispatch.run();
+        return this;
+    }
+
+    /**
+     * Removes the command from the shell if it hasn't been written yet. The shell writes queued
+     * commands right away, so this mostly works for commands behind a closed or busy writer.
+     * Written commands can only be stopped by closing their shell (mayInterruptIfRunning).
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) return false;
+        }
+        if (canceller.cancel(command)) {
+            finish(new CancellationException("Command has been cancelled"), true);
+            return true;
+        }
+        if (mayInterruptIfRunning) {
+            finish(new CancellationException("Command has been cancelled"), true);
+            command.terminate("Cancelled");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!done) {
+                wait();
+            }
+        }
+        return getResult();
+    }
+
+    @Override
+    public T get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(time);
+        synchronized (this) {
+            while (!done) {
+                long left = end - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException("Command still running");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+        return getResult();
+    }
+
+    /**
+     * Waits for a SimpleCommand like Shell.execCommand() does
+     *
+     * @return output of the command
+     * @throws FailedExecuteCommand if the command failed, the exit code is not 0 or the output
+     *                              was cut off at the capture limit
+     */
+    public String getOutput() throws FailedExecuteCommand {
+        try {
+            get();
+        } catch (Exception e) {
+            throw new FailedExecuteCommand(command);
+        }
+        SimpleCommand simpleCommand = (SimpleCommand) command;
+        if (simpleCommand.getExitCode() != 0 || simpleCommand.isOutputTruncated()) {
+            throw new FailedExecuteCommand(command);
+        }
+        return simpleCommand.getOutput();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return command;
+    }
+
+    /**
+     * Called by the command when the shell reported its exit code or terminated it
+     */
+    void onExit(String terminationReason) {
+        if (Command.TIMEOUT.equals(terminationReason)) {
+            finish(new TimeoutException("Timeout has occurred."), false);
+        } else if (terminationReason != null) {
+            finish(new IOException("Command did not finish, because of " + terminationReason), false);
+        } else if (command.brokenBusyboxDetected) {
+            finish(new BrokenBusyboxException(), false);
+        } else {
+            command.processAfterExecution(command.exitCode);
+            finish(null, false);
+        }
+    }
+
+    private void finish(Exception e, boolean cancel) {
+        ArrayList<Runnable> run;
+        synchronized (this) {
+            if (done) return;
+            done = true;
+            cancelled = cancel;
+            failure = e;
+            run = new ArrayList<Runnable>(callbacks);
+            callbacks.clear();
+            notifyAll();
+        }
+        for (Runnable callback : run) {
+            callback.run();
+        }
+    }
+}
@@ -21,6 +21,8 @@ public class SimpleCommand extends Command {
 
     public SimpleCommand(String... command) {
         super(command);
+        // output is only needed as a whole, no String per line
+        setOutputMode(OUTPUT_CAPTURE);
     }
 
     @Override
@@ -33,7 +35,7 @@ public class SimpleCommand extends Command {
     }
 
     public String getOutput() {
-        return sb.toString();
+        return getOutputMode() == OUTPUT_CAPTURE ? getCapturedOutput() : sb.toString();
     }
 
     public int getExitCode() {
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands.command;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Command whose stdout is passed unchanged (binary safe) to Java through a named pipe, the shell
+ * output only carries stderr and the token. Use open() to run it.
+ */
+public class StreamCommand extends Command {
+    // error messages are kept, the data goes through the pipe
+    private static final int ERROR_LIMIT = 64 * 1024;
+
+    private final File fifo;
+
+    /**
+     * @param fifo    named pipe the output is written to
+     * @param command for example "cat /dev/block/mmcblk0p1"
+     */
+    public StreamCommand(File fifo, String command) {
+        // no timeout, the command ends when the reader closes the stream
+        super(0, command);
+        this.fifo = fifo;
+        setOutputMode(OUTPUT_CAPTURE);
+        setCaptureLimit(ERROR_LIMIT);
+    }
+
+    @Override
+    public String getCommand() {
+        // stderr is duplicated to the shell output before stdout is redirected to the pipe
+        return "(" + command[0] + ") 2>&1 > \"" + fifo.getAbsolutePath() + "\"\n";
+    }
+
+    @Override
+    public void output(int id, String line) {
+    }
+
+    @Override
+    public void afterExecution(int id, int exitCode) {
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return stderr of the command
+     */
+    public String getErrorOutput() {
+        return getCapturedOutput();
+    }
+
+    /**
+     * Runs command on shell and returns its stdout as stream. Blocks until the shell starts the
+     * command (commands queued before it have finished).
+     *
+     * @param mkfifo command to create named pipes, for example "/path/to/busybox mkfifo"
+     * @param fifo   path for the named pipe, has to be readable by the App and the shell
+     * @return stream of the output, close() reports a failed command
+     */
+    public static CommandInputStream open(Shell shell, String mkfifo, final File fifo,
+                                          String command) throws IOException,
+            FailedExecuteCommand {
+        String path = "\"" + fifo.getAbsolutePath() + "\"";
+        shell.execCommand("rm -f " + path + "; " + mkfifo + " " + path + " && chmod 666 " + path);
+        final StreamCommand streamCommand = new StreamCommand(fifo, command);
+        final CommandFuture<StreamCommand> future = shell.submit(streamCommand);
+        final Object lock = new Object();
+        final boolean[] opened = {false};
+        future.addCallback(new CommandFuture.Callback<StreamCommand>() {
+            @Override
+            public void onFinished(StreamCommand command) {
+            }
+
+            @Override
+            public void onFailed(StreamCommand command, Exception e) {
+                synchronized (lock) {
+                    if (opened[0]) return;
+                }
+                // the shell never opened the pipe, open it once for writing so the reader
+                // waiting in open() gets an empty stream instead of hanging forever
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            new FileOutputStream(fifo).close();
+                        } catch (IOException e) {
+                            Log.e(RootCommands.TAG, "Unable to release " + fifo, e);
+                        }
+                    }
+                }, "StreamCommand Release").start();
+            }
+        }, CommandFuture.DIRECT);
+        FileInputStream in;
+        try {
+            in = new FileInputStream(fifo);
+        } catch (IOException e) {
+            future.cancel(true);
+            fifo.delete();
+            throw e;
+        }
+        synchronized (lock) {
+            opened[0] = true;
+        }
+        return new CommandInputStream(in, future, fifo);
+    }
+
+    /**
+     * Output of a StreamCommand
+     */
+    public static class CommandInputStream extends FilterInputStream {
+        private final CommandFuture<StreamCommand> future;
+        private final File fifo;
+        private boolean eof = false;
+
+        CommandInputStream(InputStream in, CommandFuture<StreamCommand> future, File fifo) {
+            super(in);
+            this.future = future;
+            this.fifo = fifo;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read < 0) eof = true;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read < 0) eof = true;
+            return read;
+        }
+
+        /**
+         * Closes the pipe and waits for the command, a command which is still writing is stopped
+         * by SIGPIPE
+         *
+         * @throws IOException if the whole output has been read but the command failed
+         */
+        @Override
+        public void close() throws IOException {
+            super.close();
+            StreamCommand command;
+            try {
+                command = future.get();
+            } catch (Exception e) {
+                throw new IOException("Stream command failed: " + e);
+            } finally {
+                fifo.delete();
+            }
+            if (eof && command.getExitCode() != 0) {
+                throw new IOException("Stream command failed with exit code "
+                        + command.getExitCode() + ": " + command.getErrorOutput());
+            }
+        }
+    }
+}
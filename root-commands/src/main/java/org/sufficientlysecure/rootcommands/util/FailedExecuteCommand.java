@@ -37,6 +37,7 @@ public class FailedExecuteCommand extends Exception {
         return (SimpleCommand) command;
     }
     public String toString() {
-        return "Failed execute: " + command.getCommand() + "////" + ((SimpleCommand)command).getOutput();
+        return "Failed execute (" + command.getExecutionTime() + " ms): " + command.getCommand()
+                + "////" + ((SimpleCommand)command).getOutput();
     }
 }
@@ -38,6 +38,8 @@ public class Utils {
     static final String[] BinaryPlaces = {"/data/bin/", "/system/bin/", "/system/xbin/", "/sbin/",
             "/data/local/xbin/", "/data/local/bin/", "/system/sd/xbin/", "/system/bin/failsafe/",
             "/data/local/"};
+    // result of getSuPath()
+    private static volatile String suPath = null;
 
     /**
      * Determine the path of the su executable.
@@ -46,17 +48,27 @@ public class Utils {
      * agreed by Michael Elsdörfer
      */
     public static String getSuPath() {
+        String path = suPath;
+        if (path != null) {
+            return path;
+        }
+        path = "su";
         for (String p : BinaryPlaces) {
             File su = new File(p + "su");
             if (su.exists()) {
                 Log.d(RootCommands.TAG, "su found at: " + p);
-                return su.getAbsolutePath();
+                path = su.getAbsolutePath();
+                break;
             } else {
                 Log.v(RootCommands.TAG, "No su in: " + p);
             }
         }
-        Log.d(RootCommands.TAG, "No su found in a well-known location, " + "will just use \"su\".");
-        return "su";
+        if (path.equals("su")) {
+            Log.d(RootCommands.TAG, "No su found in a well-known location, " + "will just use \"su\".");
+        }
+        // su doesn't move while the App runs, every shell of a pool needs it
+        suPath = path;
+        return path;
     }
 
     /**
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutputReaderTest {
+
+    private static final byte[] TOKEN = "F*D^W@#FGF".getBytes();
+
+    @Test
+    public void splitsLines() throws IOException {
+        OutputReader reader = reader("one\r\ntwo\n\nlast");
+        assertTrue(reader.readLine());
+        assertEquals("one", reader.toString());
+        assertTrue(reader.readLine());
+        assertTrue(reader.equalsAscii("two"));
+        assertTrue(reader.readLine());
+        assertEquals(0, reader.getLength());
+        assertTrue(reader.readLine());
+        assertEquals("last", reader.toString());
+        assertFalse(reader.readLine());
+    }
+
+    // lines longer than the read buffer and split over several reads
+    @Test
+    public void readsLongLines() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            line.append(i % 10);
+        }
+        OutputReader reader = new OutputReader(new SlowStream(
+                (line + "\n" + line + "\n").getBytes(), 1000));
+        for (int i = 0; i < 2; i++) {
+            assertTrue(reader.readLine());
+            assertEquals(line.toString(), reader.toString());
+        }
+        assertFalse(reader.readLine());
+    }
+
+    @Test
+    public void findsTokenAndExitCode() throws IOException {
+        OutputReader reader = reader("output" + new String(TOKEN) + " 42 -1\n");
+        assertTrue(reader.readLine());
+        int pos = reader.indexOf(TOKEN);
+        assertEquals(6, pos);
+        int[] number = new int[1];
+        int next = reader.parseInt(pos + TOKEN.length, number);
+        assertEquals(42, number[0]);
+        reader.parseInt(next, number);
+        assertEquals(-1, number[0]);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMissingNumber() throws IOException {
+        OutputReader reader = reader("Started x\n");
+        assertTrue(reader.readLine());
+        reader.parseInt("Started ".length(), new int[1]);
+    }
+
+    // Parses about 20 MB of command output with tokens like Shell.readOutput() does, compared
+    // with a String per line from a BufferedReader. Prints throughput and, where the JVM can
+    // tell, the bytes allocated by each parser.
+    @Test
+    public void benchmarkParser() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lines = 0;
+        for (int i = 0; out.size() < 20 * 1024 * 1024; i++) {
+            out.write(("-rw-r--r-- root     root         4096 2015-01-01 00:00 file" + i + "\n")
+                    .getBytes());
+            lines++;
+            if (i % 100 == 99) {
+                out.write(("\necho " + new String(TOKEN) + " " + i / 100 + " 0\n").getBytes());
+                lines += 2;
+            }
+        }
+        byte[] data = out.toByteArray();
+        String token = new String(TOKEN);
+        for (int round = 0; round < 3; round++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            OutputReader reader = new OutputReader(new ByteArrayInputStream(data));
+            int tokens = 0;
+            int count = 0;
+            while (reader.readLine()) {
+                count++;
+                if (reader.indexOf(TOKEN) >= 0) tokens++;
+            }
+            long bytes = System.nanoTime() - start;
+            long bytesAllocated = allocatedBytes() - allocated;
+            assertEquals(lines, count);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(data)));
+            int stringTokens = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.contains(token)) stringTokens++;
+            }
+            long strings = System.nanoTime() - start;
+            long stringsAllocated = allocatedBytes() - allocated;
+            assertEquals(stringTokens, tokens);
+            if (round == 2) {
+                System.out.println(String.format("%d lines: OutputReader %.0f MB/s %d KB"
+                                + " allocated, String lines %.0f MB/s %d KB allocated", lines,
+                        data.length / 1048576.0 / (bytes / 1e9), bytesAllocated / 1024,
+                        data.length / 1048576.0 / (strings / 1e9), stringsAllocated / 1024));
+            }
+        }
+    }
+
+    // bytes allocated by the current thread so far, 0 if the JVM doesn't count them
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static OutputReader reader(String text) {
+        return new OutputReader(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    // returns at most chunk bytes per read like a pipe
+    private static class SlowStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int position = 0;
+
+        SlowStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position == data.length) return -1;
+            int count = Math.min(Math.min(length, chunk), data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.FailedExecuteCommand;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs commands through a local sh, root is not needed.
+ */
+public class ShellTest {
+
+    private Shell shell;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("needs a sh", new File("/bin/sh").exists());
+        shell = Shell.startShell();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (shell != null) {
+            shell.close();
+        }
+    }
+
+    // Several threads keep the queue busy, finished commands and their output must not stay
+    // referenced by the shell.
+    @Test
+    public void releasesFinishedCommands() throws Exception {
+        final int threads = 4;
+        final int perThread = 5000;
+        final List<WeakReference<SimpleCommand>> samples =
+                new ArrayList<WeakReference<SimpleCommand>>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            SimpleCommand command = new SimpleCommand("echo " + thread + "-" + i);
+                            shell.add(command).waitForFinish();
+                            assertEquals(thread + "-" + i + "\n", command.getOutput());
+                            assertEquals(0, command.getExitCode());
+                            if (i % 500 == 0) {
+                                synchronized (samples) {
+                                    samples.add(new WeakReference<SimpleCommand>(command));
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, shell.getCommandsSize());
+
+        for (int i = 0; i < 10 && !collected(samples); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        for (WeakReference<SimpleCommand> sample : samples) {
+            assertNull("finished command is still referenced", sample.get());
+        }
+    }
+
+    @Test
+    public void execCommandVariants() throws Exception {
+        assertEquals("123\n", shell.execCommand("echo 123"));
+        assertEquals("a\n", shell.execCommand(new SimpleCommand("echo a")));
+        assertEquals("b\n", shell.execCommand("echo b", 1000));
+        try {
+            shell.execCommand("echo out; exit_code() { return $1; }; exit_code 2");
+            fail("non zero exit code must throw");
+        } catch (FailedExecuteCommand e) {
+            assertEquals(2, e.getCommand().getExitCode());
+            assertEquals("out\n", e.getCommand().getOutput());
+        }
+    }
+
+    // the timed out command is killed, the shell keeps running
+    @Test
+    public void execCommandTimesOut() throws Exception {
+        long start = System.nanoTime();
+        try {
+            shell.execCommand("sleep 10", 300);
+            fail("timed out command must throw");
+        } catch (FailedExecuteCommand e) {
+            assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        }
+        assertEquals("alive\n", shell.execCommand("echo alive"));
+    }
+
+    // the kill for a command which finished in the meantime must not hit the next one
+    @Test
+    public void killSparesFollowingCommand() throws Exception {
+        Shell killer = Shell.startShell();
+        try {
+            SimpleCommand next = new SimpleCommand("sleep 1; echo done");
+            next.setTimeout(0);
+            long start = System.nanoTime();
+            shell.add(next);
+            Thread.sleep(200);
+            killer.execCommand(Shell.killScript(shell.getPid(), next.getId() - 1));
+            next.waitForFinish();
+            assertEquals("done\n", next.getOutput());
+            assertTrue((System.nanoTime() - start) / 1000000 >= 1000);
+
+            SimpleCommand running = new SimpleCommand("sleep 10; echo done");
+            running.setTimeout(0);
+            start = System.nanoTime();
+            shell.add(running);
+            Thread.sleep(200);
+            killer.execCommand(Shell.killScript(shell.getPid(), running.getId()));
+            running.waitForFinish();
+            assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        } finally {
+            killer.close();
+        }
+    }
+
+    @Test
+    public void execCommandFailsOnTruncatedOutput() throws Exception {
+        // 11 bytes per line, a bit more than the capture limit
+        int lines = Command.DEFAULT_CAPTURE_LIMIT / 11 + 1000;
+        try {
+            shell.execCommand("yes 0123456789 | head -n " + lines);
+            fail("truncated output must throw");
+        } catch (FailedExecuteCommand e) {
+            assertTrue(e.getCommand().isOutputTruncated());
+            assertEquals(0, e.getCommand().getExitCode());
+            assertEquals(Command.DEFAULT_CAPTURE_LIMIT, e.getCommand().getOutput().length());
+        }
+        assertEquals("next\n", shell.execCommand("echo next"));
+    }
+
+    // the marker is found in captured output without decoding it
+    @Test
+    public void detectsBrokenBusybox() throws Exception {
+        try {
+            shell.submit(new SimpleCommand(
+                    "echo 'ls: /data/x: Value too large for defined data type'")).get();
+            fail("broken busybox must be reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BrokenBusyboxException);
+        }
+    }
+
+    @Test
+    public void execBatchReturnsEveryOutput() throws Exception {
+        String[] outputs = shell.execBatch("echo 1", "printf 'a\\nb\\n'", "true", "echo 3");
+        assertEquals(4, outputs.length);
+        assertEquals("1\n", outputs[0]);
+        assertEquals("a\nb\n", outputs[1]);
+        assertEquals("", outputs[2]);
+        assertEquals("3\n", outputs[3]);
+        assertEquals(0, shell.getCommandsSize());
+    }
+
+    // a failing command doesn't stop the following ones, the first failure is thrown at the end
+    @Test
+    public void execBatchThrowsFirstFailureAfterAll() throws Exception {
+        try {
+            shell.execBatch("echo one", "exit_code() { return $1; }; exit_code 3", "false",
+                    "marker=done");
+            fail("batch with failing commands must throw");
+        } catch (FailedExecuteCommand e) {
+            assertEquals(3, e.getCommand().getExitCode());
+        }
+        assertEquals("done\n", shell.execCommand("echo $marker"));
+    }
+
+    // Compares one execCommand per command with a single execBatch for batches of 1, 10 and
+    // 1000 commands, the first round warms up
+    @Test
+    public void benchmarkBatchedWrites() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            for (int size : new int[]{1, 10, 1000}) {
+                String[] commands = new String[size];
+                for (int i = 0; i < size; i++) {
+                    commands[i] = "echo " + i;
+                }
+                int repeat = Math.max(1, 2000 / size);
+                long start = System.nanoTime();
+                for (int r = 0; r < repeat; r++) {
+                    for (int i = 0; i < size; i++) {
+                        assertEquals(i + "\n", shell.execCommand(commands[i]));
+                    }
+                }
+                long sequential = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int r = 0; r < repeat; r++) {
+                    String[] outputs = shell.execBatch(commands);
+                    assertEquals((size - 1) + "\n", outputs[size - 1]);
+                }
+                long batched = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println(String.format("batch of %d: execCommand %.0f cmd/s,"
+                                    + " execBatch %.0f cmd/s", size,
+                            repeat * size / (sequential / 1e9), repeat * size / (batched / 1e9)));
+                }
+            }
+        }
+    }
+
+    private static boolean collected(List<WeakReference<SimpleCommand>> references) {
+        for (WeakReference<SimpleCommand> reference : references) {
+            if (reference.get() != null) return false;
+        }
+        return true;
+    }
+}
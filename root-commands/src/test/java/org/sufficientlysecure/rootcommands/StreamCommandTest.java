@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.sufficientlysecure.rootcommands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sufficientlysecure.rootcommands.command.StreamCommand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Streams command output through a named pipe of a local sh, root is not needed.
+ */
+public class StreamCommandTest {
+
+    private Shell shell;
+    private File dir;
+    private File fifo;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("needs a sh", new File("/bin/sh").exists());
+        assumeTrue("needs mkfifo", new File("/usr/bin/mkfifo").exists()
+                || new File("/bin/mkfifo").exists());
+        shell = Shell.startShell();
+        dir = File.createTempFile("streamcommand", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        fifo = new File(dir, "pipe");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (shell != null) {
+            shell.close();
+        }
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    // Every byte value, including newlines and zeros, has to arrive unchanged.
+    @Test
+    public void passesBinaryOutputUnchanged() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        new Random(42).nextBytes(data);
+        for (int i = 0; i < 256; i++) {
+            data[i] = (byte) i;
+        }
+        File source = new File(dir, "data.bin");
+        FileOutputStream fos = new FileOutputStream(source);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        InputStream in = StreamCommand.open(shell, "mkfifo", fifo,
+                "cat \"" + source.getAbsolutePath() + "\"");
+        byte[] read;
+        try {
+            read = readAll(in);
+        } finally {
+            in.close();
+        }
+        assertTrue("output differs", Arrays.equals(data, read));
+        assertTrue("pipe is left behind", !fifo.exists());
+    }
+
+    // A failing command ends its stream normally, close() reports the exit code and stderr.
+    @Test
+    public void closeReportsFailedCommand() throws Exception {
+        File missing = new File(dir, "missing");
+        InputStream in = StreamCommand.open(shell, "mkfifo", fifo,
+                "cat \"" + missing.getAbsolutePath() + "\"");
+        assertEquals(0, readAll(in).length);
+        try {
+            in.close();
+            fail("close() should fail for a non-zero exit code");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exit code 1"));
+            assertTrue(e.getMessage(), e.getMessage().contains(missing.getName()));
+        }
+    }
+
+    // The failed stream must not leave anything on the shell which breaks the next command.
+    @Test
+    public void shellWorksAfterFailedStream() throws Exception {
+        InputStream in = StreamCommand.open(shell, "mkfifo", fifo, "echo partial; exit 3");
+        assertEquals("partial\n", new String(readAll(in)));
+        try {
+            in.close();
+            fail("close() should fail for a non-zero exit code");
+        } catch (IOException expected) {
+        }
+        assertTrue(shell.isAlive());
+        assertEquals("ok", shell.execCommand("echo ok").trim());
+        in = StreamCommand.open(shell, "mkfifo", fifo, "echo again");
+        try {
+            assertEquals("again\n", new String(readAll(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}